@@ -15,18 +15,113 @@
  */
 package org.elasticsearch.plugin.sortbydoc;
 
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.ScriptPlugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.query.sortbydoc.LookupQueryReader;
+import org.elasticsearch.search.query.sortbydoc.SortByDocFilterQueryBuilder;
+import org.elasticsearch.search.query.sortbydoc.SortByDocFilterQueryParser;
 import org.elasticsearch.search.query.sortbydoc.SortByDocQueryBuilder;
 import org.elasticsearch.search.query.sortbydoc.SortByDocQueryParser;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupWarmer;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupBreaker;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.rest.RestUpdateScoresAction;
+import org.elasticsearch.search.query.sortbydoc.script.SortByDocScriptEngine;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 
-public class SortByDocPlugin extends Plugin implements SearchPlugin {
+public class SortByDocPlugin extends Plugin implements SearchPlugin, ScriptPlugin, ActionPlugin {
+    // query readers and parsers and the script engine are registered before the components are created
+    private final SetOnce<ScoreLookupService> service = new SetOnce<>();
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        this.threadPool.set(threadPool);
+        ScoreLookupService service = new ScoreLookupService(environment.settings(), client, threadPool.executor(ThreadPool.Names.GENERIC));
+        this.service.set(service);
+        clusterService.addListener(event -> {
+            for (Index index : event.indicesDeleted()) {
+                service.invalidateIndex(index.getName());
+            }
+        });
+        // bound by the injector, for the ScoreLookupBreaker
+        return Collections.singletonList(service);
+    }
+
+    @Override
+    public Collection<Module> createGuiceModules() {
+        return Collections.singletonList(binder -> binder.bind(ScoreLookupBreaker.class).asEagerSingleton());
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(ScoreLookupService.CACHE_SIZE_SETTING, ScoreLookupService.LEAF_CACHE_SIZE_SETTING,
+                ScoreLookupService.MAX_CHUNK_SIZE_SETTING, LookupWarmer.HOT_LOOKUPS_SETTING, LookupWarmer.INTERVAL_SETTING,
+                LookupWarmer.DECAY_INTERVAL_SETTING);
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        LookupWarmer warmer = new LookupWarmer(threadPool.get(), service.get(), indexModule.getIndex().getName(),
+                indexModule.getSettings());
+        indexModule.addSettingsUpdateConsumer(LookupWarmer.HOT_LOOKUPS_SETTING, warmer::setHotLookups);
+        indexModule.addIndexEventListener(warmer);
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestUpdateScoresAction(settings, restController, threadPool.get(), service.get()));
+    }
+
     @Override
     public List<QuerySpec<?>> getQueries() {
-        return Collections.singletonList(new QuerySpec<>(SortByDocQueryParser.NAME, SortByDocQueryBuilder::new, SortByDocQueryParser::fromXContent));
+        return Arrays.asList(
+                new QuerySpec<>(SortByDocQueryParser.NAME, new LookupQueryReader<>(SortByDocQueryBuilder::new, service::get),
+                        parser -> SortByDocQueryParser.fromXContent(parser, service::get)),
+                new QuerySpec<>(SortByDocFilterQueryParser.NAME, new LookupQueryReader<>(SortByDocFilterQueryBuilder::new, service::get),
+                        parser -> SortByDocFilterQueryParser.fromXContent(parser, service::get)));
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
+        return new SortByDocScriptEngine(service::get);
     }
 }
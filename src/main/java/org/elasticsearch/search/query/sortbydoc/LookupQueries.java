@@ -0,0 +1,72 @@
+package org.elasticsearch.search.query.sortbydoc;
+
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupVersion;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Helpers shared by the query builders reading a lookup list
+ */
+final class LookupQueries {
+
+    private LookupQueries() {
+    }
+
+    /**
+     * Builders built with the java api rather than read or parsed by the node are not given the lookup service:
+     * they take it from the reader the plugin registered for their query.
+     */
+    static Supplier<ScoreLookupService> lookupService(QueryRewriteContext context, String queryName) {
+        Writeable.Reader<? extends QueryBuilder> reader = context.getWriteableRegistry().getReader(QueryBuilder.class, queryName);
+        if (!(reader instanceof LookupQueryReader)) {
+            throw new IllegalStateException("[" + queryName + "] is not read by a " + LookupQueryReader.class.getSimpleName());
+        }
+        return ((LookupQueryReader<?>) reader).lookupService();
+    }
+
+    /**
+     * Pins the version of the lookup document read by a query: it is fetched once, on the coordinating node,
+     * and sent with the query so that the shard request cache key changes with the lookup document.
+     *
+     * @param version the pinned version, null if none yet
+     * @param fetching the version being fetched, null if none is
+     * @param copy copies the query with a pinned version or, while it is fetched, the version being fetched
+     * @return the query to rewrite to, null once the version is pinned or when the query is rewritten on a shard
+     */
+    static <Q extends QueryBuilder> Q pinVersion(Q query, QueryRewriteContext context, ScoreLookup lookup, LookupVersion version,
+                                                 Supplier<LookupVersion> fetching,
+                                                 BiFunction<LookupVersion, Supplier<LookupVersion>, Q> copy) {
+        if (fetching != null) {
+            LookupVersion fetched = fetching.get();
+            // not fetched yet
+            return fetched == null ? query : copy.apply(fetched, null);
+        }
+        if (version == null && context.convertToShardContext() == null) {
+            // on the coordinating node
+            SetOnce<LookupVersion> fetched = new SetOnce<>();
+            context.registerAsyncAction((client, listener) ->
+                    client.get(lookup.versionRequest(), ActionListener.wrap(response -> {
+                        fetched.set(LookupVersion.of(response));
+                        listener.onResponse(null);
+                    }, listener::onFailure)));
+            return copy.apply(null, fetched::get);
+        }
+        return null;
+    }
+
+    static ScoreLookupService lookupService(Supplier<ScoreLookupService> lookupService, String queryName) {
+        ScoreLookupService service = lookupService == null ? null : lookupService.get();
+        if (service == null) {
+            throw new IllegalStateException("[" + queryName + "] the lookup service is not available, the query must be rewritten first");
+        }
+        return service;
+    }
+}
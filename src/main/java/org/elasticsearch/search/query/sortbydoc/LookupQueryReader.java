@@ -0,0 +1,35 @@
+package org.elasticsearch.search.query.sortbydoc;
+
+import org.elasticsearch.common.CheckedBiFunction;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * Reads a query reading a lookup list with the lookup service of the node.
+ * Registered as the reader of the query, it also hands the service over to the builders
+ * built with the java api, see {@link LookupQueries#lookupService(org.elasticsearch.index.query.QueryRewriteContext, String)}.
+ */
+public final class LookupQueryReader<Q extends QueryBuilder> implements Writeable.Reader<Q> {
+    private final CheckedBiFunction<StreamInput, Supplier<ScoreLookupService>, Q, IOException> reader;
+    private final Supplier<ScoreLookupService> lookupService;
+
+    public LookupQueryReader(CheckedBiFunction<StreamInput, Supplier<ScoreLookupService>, Q, IOException> reader,
+                             Supplier<ScoreLookupService> lookupService) {
+        this.reader = reader;
+        this.lookupService = lookupService;
+    }
+
+    @Override
+    public Q read(StreamInput in) throws IOException {
+        return reader.apply(in, lookupService);
+    }
+
+    Supplier<ScoreLookupService> lookupService() {
+        return lookupService;
+    }
+}
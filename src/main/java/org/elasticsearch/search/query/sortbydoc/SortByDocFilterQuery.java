@@ -0,0 +1,84 @@
+package org.elasticsearch.search.query.sortbydoc;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Matches the documents listed by a lookup list, without scoring them: the listed ids are
+ * turned into a doc id set per segment, which the query cache can keep.
+ */
+public class SortByDocFilterQuery extends Query {
+    private final ScoreTable members;
+    private final String field;
+    private final int hashCode;
+
+    /**
+     * Matches the documents whose _id is listed by the table
+     */
+    public SortByDocFilterQuery(ScoreTable members) {
+        this(members, null);
+    }
+
+    /**
+     * @param joinField keyword field holding the keys of the table, null if the table holds _ids
+     */
+    public SortByDocFilterQuery(ScoreTable members, String joinField) {
+        this.members = members;
+        this.field = joinField == null ? IdFieldMapper.NAME : joinField;
+        this.hashCode = Objects.hash(classHash(), members, field);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                DocIdSet docs = members.members(context, field);
+                DocIdSetIterator iterator = docs.iterator();
+                if (iterator == null) {
+                    return null;
+                }
+                return new ConstantScoreScorer(this, score(), scoreMode, iterator);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                // the matching docs only depend on the fingerprinted lookup list
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public String toString(String s) {
+        return "sort-by-doc-filter(" + field + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SortByDocFilterQuery that = (SortByDocFilterQuery) o;
+        return hashCode == that.hashCode &&
+                Objects.equals(field, that.field) &&
+                Objects.equals(members, that.members);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
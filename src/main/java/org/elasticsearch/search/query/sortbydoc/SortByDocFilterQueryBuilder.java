@@ -0,0 +1,250 @@
+package org.elasticsearch.search.query.sortbydoc;
+
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.Version;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupVersion;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Restricts results to the documents listed by a lookup document, without scoring them.
+ * Scores of the list are not parsed: the list is read as ranks, its ids only matter.
+ */
+public class SortByDocFilterQueryBuilder extends AbstractQueryBuilder<SortByDocFilterQueryBuilder> {
+    private String lookupIndex;
+    private String lookupId;
+    private String lookupRouting;
+
+    private String rootPath;
+    private String idField;
+    private String chunksField;
+    private String joinField;
+    // version of the lookup document read when the query is rewritten on the coordinating node,
+    // so that the shard request cache key changes with the lookup document
+    private LookupVersion lookupVersion;
+    private Supplier<LookupVersion> lookupVersionSupplier;
+    // given by the readers and parsers of the plugin, see LookupQueries#lookupService otherwise
+    private Supplier<ScoreLookupService> lookupService;
+
+    public SortByDocFilterQueryBuilder() {
+    }
+
+    SortByDocFilterQueryBuilder(Supplier<ScoreLookupService> lookupService) {
+        this.lookupService = lookupService;
+    }
+
+    public SortByDocFilterQueryBuilder(StreamInput in, Supplier<ScoreLookupService> lookupService) throws IOException {
+        super(in);
+        this.lookupService = lookupService;
+        this.lookupIndex = in.readString();
+        this.lookupId = in.readString();
+        this.lookupRouting = in.readOptionalString();
+        this.rootPath = in.readString();
+        this.idField = in.readString();
+        this.chunksField = in.readOptionalString();
+        this.joinField = in.readOptionalString();
+        this.lookupVersion = in.readOptionalWriteable(LookupVersion::new);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return SortByDocFilterQueryParser.NAME;
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(lookupIndex);
+        out.writeString(lookupId);
+        out.writeOptionalString(lookupRouting);
+        out.writeString(rootPath);
+        out.writeString(idField);
+        out.writeOptionalString(chunksField);
+        out.writeOptionalString(joinField);
+        if (lookupVersionSupplier != null) {
+            throw new IllegalStateException("[sort_by_doc_filter] the lookup version must be fetched before serializing the query, missing a rewriteAndFetch?");
+        }
+        out.writeOptionalWriteable(lookupVersion);
+    }
+
+    /**
+     * Sets the routing for the doc to lookup
+     */
+    public SortByDocFilterQueryBuilder lookupRouting(String lookupRouting) {
+        this.lookupRouting = lookupRouting;
+        return this;
+    }
+
+    /**
+     * Sets the index name to lookup the terms from.
+     */
+    public SortByDocFilterQueryBuilder lookupIndex(String lookupIndex) {
+        this.lookupIndex = lookupIndex;
+        return this;
+    }
+
+    /**
+     * Sets the doc id to lookup the terms from.
+     */
+    public SortByDocFilterQueryBuilder lookupId(String lookupId) {
+        this.lookupId = lookupId;
+        return this;
+    }
+
+    /**
+     * Sets the path within the document to lookup the items from.
+     */
+    public SortByDocFilterQueryBuilder rootPath(String rootPath) {
+        this.rootPath = rootPath;
+        return this;
+    }
+
+    /**
+     * Sets the field name to retrieve ids in objects found at rootPath
+     */
+    public SortByDocFilterQueryBuilder idField(String idField) {
+        this.idField = idField;
+        return this;
+    }
+
+    /**
+     * Sets the field of the lookup document listing the ids of its chunk documents, see {@link SortByDocQueryBuilder#chunksField}
+     */
+    public SortByDocFilterQueryBuilder chunksField(String chunksField) {
+        this.chunksField = chunksField;
+        return this;
+    }
+
+    /**
+     * Sets the indexed keyword field of the searched documents holding the ids of the list, rather than their _id
+     */
+    public SortByDocFilterQueryBuilder joinField(String joinField) {
+        this.joinField = joinField;
+        return this;
+    }
+
+    public void validate(Function<String, ElasticsearchException> exceptionProvider) {
+        if (lookupId == null) {
+            throw exceptionProvider.apply("[sort_by_doc_filter] query lookup element requires specifying the doc_id");
+        }
+        if (lookupIndex == null) {
+            throw exceptionProvider.apply("[sort_by_doc_filter] query lookup element requires specifying the index");
+        }
+        if (rootPath == null) {
+            throw exceptionProvider.apply("[sort_by_doc_filter] query lookup element requires specifying the path");
+        }
+        if (idField == null) {
+            throw exceptionProvider.apply("[sort_by_doc_filter] query lookup element requires specifying the id");
+        }
+    }
+
+    @Override
+    protected boolean doEquals(SortByDocFilterQueryBuilder o) {
+        return Objects.equals(lookupIndex, o.lookupIndex) &&
+                Objects.equals(lookupId, o.lookupId) &&
+                Objects.equals(lookupRouting, o.lookupRouting) &&
+                Objects.equals(rootPath, o.rootPath) &&
+                Objects.equals(idField, o.idField) &&
+                Objects.equals(chunksField, o.chunksField) &&
+                Objects.equals(joinField, o.joinField) &&
+                Objects.equals(lookupVersion, o.lookupVersion) &&
+                Objects.equals(lookupVersionSupplier, o.lookupVersionSupplier);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(lookupIndex, lookupId, lookupRouting, rootPath, idField, chunksField, joinField, lookupVersion, lookupVersionSupplier);
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(SortByDocFilterQueryParser.NAME);
+        builder.field("index", lookupIndex);
+        builder.field("doc_id", lookupId);
+        if (lookupRouting != null) {
+            builder.field("routing", lookupRouting);
+        }
+        builder.field("root", rootPath);
+        builder.field("id", idField);
+        if (chunksField != null) {
+            builder.field("chunks", chunksField);
+        }
+        if (joinField != null) {
+            builder.field("join_field", joinField);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        if (joinField != null) {
+            MappedFieldType joinType = context.fieldMapper(joinField);
+            if (joinType == null || !joinType.typeName().equals(KeywordFieldMapper.CONTENT_TYPE) || joinType.indexOptions() == IndexOptions.NONE)
+                throw new IllegalArgumentException("[sort_by_doc_filter] the join_field [" + joinField + "] must be an indexed keyword field");
+        }
+
+        ScoreLookupService service = LookupQueries.lookupService(lookupService, SortByDocFilterQueryParser.NAME);
+        ScoreTable members;
+        if (context.indexVersionCreated().before(Version.V_6_0_0_beta1)) {
+            // 5.x index with index.mapping.single_type = true stores raw ids
+            members = ScoreTable.build(service.fetch(toLookup()), true, ScoreEncoding.RANK);
+        } else {
+            ScoreLookup lookup = toLookup();
+            service.recordUse(context.index().getName(), lookup);
+            members = service.getTable(lookup, lookupVersion);
+        }
+        if (members.isEmpty()) {
+            return new MatchNoDocsQuery("[sort_by_doc_filter] empty lookup list");
+        }
+        return new SortByDocFilterQuery(members, joinField);
+    }
+
+    ScoreLookup toLookup() {
+        return new ScoreLookup(lookupIndex, lookupId, lookupRouting, rootPath, idField, null, ScoreEncoding.RANK, chunksField, joinField);
+    }
+
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext queryShardContext) throws IOException {
+        if (lookupService == null) {
+            SortByDocFilterQueryBuilder copy = copy(lookupVersion, lookupVersionSupplier);
+            copy.lookupService = LookupQueries.lookupService(queryShardContext, getWriteableName());
+            return copy;
+        }
+        SortByDocFilterQueryBuilder pinned = LookupQueries.pinVersion(this, queryShardContext, toLookup(), lookupVersion,
+                lookupVersionSupplier, this::copy);
+        return pinned != null ? pinned : this;
+    }
+
+    private SortByDocFilterQueryBuilder copy(LookupVersion lookupVersion, Supplier<LookupVersion> lookupVersionSupplier) {
+        SortByDocFilterQueryBuilder copy = new SortByDocFilterQueryBuilder(lookupService)
+                .lookupIndex(lookupIndex)
+                .lookupId(lookupId)
+                .lookupRouting(lookupRouting)
+                .rootPath(rootPath)
+                .idField(idField)
+                .chunksField(chunksField)
+                .joinField(joinField);
+        copy.lookupVersion = lookupVersion;
+        copy.lookupVersionSupplier = lookupVersionSupplier;
+        return copy;
+    }
+}
@@ -0,0 +1,67 @@
+package org.elasticsearch.search.query.sortbydoc;
+
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * <pre>
+ * "sort_by_doc_filter" : {
+ *  "doc_id": "my_id"
+ *  "index": "my_index"
+ *  "root": "path_to_the_list"
+ *  "id": "field_for_ids"
+ *  "chunks": "field_for_chunk_ids"
+ *  "join_field": "keyword_field_for_ids"
+ * }
+ * </pre>
+ */
+public class SortByDocFilterQueryParser {
+    public static final String NAME = "sort_by_doc_filter";
+
+    public static SortByDocFilterQueryBuilder fromXContent(XContentParser parser, Supplier<ScoreLookupService> lookupService) throws IOException {
+        String currentFieldName = null;
+        SortByDocFilterQueryBuilder builder = new SortByDocFilterQueryBuilder(lookupService);
+
+        XContentParser.Token token;
+
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue() && currentFieldName != null) {
+                if ("index".equals(currentFieldName)) {
+                    builder.lookupIndex(parser.text());
+                } else if ("type".equals(currentFieldName)) {
+                    // ignore
+                } else if ("doc_id".equals(currentFieldName)) {
+                    builder.lookupId(parser.text());
+                } else if ("root".equals(currentFieldName)) {
+                    builder.rootPath(parser.text());
+                } else if ("id".equals(currentFieldName)) {
+                    builder.idField(parser.text());
+                } else if ("chunks".equals(currentFieldName)) {
+                    builder.chunksField(parser.text());
+                } else if ("join_field".equals(currentFieldName)) {
+                    builder.joinField(parser.text());
+                } else if ("routing".equals(currentFieldName)) {
+                    builder.lookupRouting(parser.textOrNull());
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    builder.queryName(parser.text());
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    builder.boost(parser.floatValue());
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(), "[sort_by_doc_filter] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[sort_by_doc_filter] unexpected token [" + token + "]");
+            }
+        }
+
+        builder.validate(str -> new ParsingException(parser.getTokenLocation(), str));
+        return builder;
+    }
+}
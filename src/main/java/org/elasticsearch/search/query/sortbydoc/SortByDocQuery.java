@@ -2,11 +2,11 @@ package org.elasticsearch.search.query.sortbydoc;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.*;
-import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
 import org.elasticsearch.search.query.sortbydoc.scoring.SortByDocWeight;
 
 import java.io.IOException;
-import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -14,19 +14,74 @@ import java.util.Objects;
  * 22/10/15, 14:11
  */
 public class SortByDocQuery extends Query {
-    private Query subQuery;
-    private Map<BytesRef, Float> scores;
+    private final Query subQuery;
+    private final ScoreTable scores;
+    private final boolean desc;
+    private final Float minScore;
+    private final Float maxScore;
+    // keyword field holding the keys of the list, null to join on _id
+    private final String joinField;
+    // resolves the table against segments, not part of the identity of the query
+    private final ScoreLookupService lookupService;
+    // the query and request caches hash queries over and over, tables are fingerprinted so this is cheap to compute once
+    private final int hashCode;
 
-    SortByDocQuery(Query subQuery, Query filter, Map<BytesRef, Float> scores) {
-        this.subQuery = new BooleanQuery.Builder()
-                .add(subQuery, BooleanClause.Occur.MUST)
-                .add(filter, BooleanClause.Occur.FILTER).build();
+    /**
+     * Only documents of the subquery that are in the table match, the scorer skips the others.
+     *
+     * @param joinField keyword field holding the keys of the table, null if the table holds _ids
+     */
+    SortByDocQuery(Query subQuery, ScoreTable scores, boolean desc, Float minScore, Float maxScore, String joinField,
+                   ScoreLookupService lookupService) {
+        this.subQuery = subQuery;
         this.scores = scores;
+        this.desc = desc;
+        this.minScore = minScore;
+        this.maxScore = maxScore;
+        this.joinField = joinField;
+        this.lookupService = lookupService;
+        this.hashCode = Objects.hash(classHash(), subQuery, scores, desc, minScore, maxScore, joinField);
     }
 
-    private SortByDocQuery(Query subQuery, Map<BytesRef, Float> scores) {
-        this.subQuery = subQuery;
-        this.scores = scores;
+    public String getJoinField() {
+        return joinField;
+    }
+
+    public ScoreLookupService getLookupService() {
+        return lookupService;
+    }
+
+    /**
+     * Whether a raw lookup score is within the requested [min_score, max_score] range
+     */
+    public boolean accepts(float score) {
+        return (minScore == null || score >= minScore) && (maxScore == null || score <= maxScore);
+    }
+
+    /**
+     * Turns a raw lookup score into a query score, higher query scores coming first
+     */
+    public float toQueryScore(float score) {
+        return desc ? score : 1 / (1e-20f + score);
+    }
+
+    /**
+     * Upper bound of the query scores of a segment, from the bounds of its valid raw scores.
+     * Invalid scores, and raw scores that are not positive in ascending order, give query scores of at most 0.
+     */
+    public float maxQueryScore(float minRawScore, float maxRawScore) {
+        float min = minScore == null ? minRawScore : Math.max(minRawScore, minScore);
+        float max = maxScore == null ? maxRawScore : Math.min(maxRawScore, maxScore);
+        if (min > max) {
+            return 0;
+        }
+        if (desc) {
+            return Math.max(0, max);
+        }
+        if (max < 0) {
+            return 0;
+        }
+        return toQueryScore(Math.max(0, min));
     }
 
     @Override
@@ -34,9 +89,7 @@ public class SortByDocQuery extends Query {
         Query newSubQuery = subQuery.rewrite(reader);
         if (newSubQuery == subQuery)
             return this;
-        SortByDocQuery newQuery = new SortByDocQuery(subQuery, scores);
-        newQuery.subQuery = newSubQuery;
-        return newQuery;
+        return new SortByDocQuery(newSubQuery, scores, desc, minScore, maxScore, joinField, lookupService);
     }
 
     @Override
@@ -46,6 +99,14 @@ public class SortByDocQuery extends Query {
 
     @Override
     public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        if (!scoreMode.needsScores() && minScore == null && maxScore == null && joinField == null) {
+            // filter context: only membership matters, the listed docs are a cacheable filter of the sub query
+            Query filter = new BooleanQuery.Builder()
+                    .add(subQuery, BooleanClause.Occur.FILTER)
+                    .add(new SortByDocFilterQuery(scores), BooleanClause.Occur.FILTER)
+                    .build();
+            return searcher.createWeight(searcher.rewrite(filter), scoreMode, boost);
+        }
         return new SortByDocWeight(this, scores, subQuery.createWeight(searcher, scoreMode, boost));
     }
 
@@ -54,12 +115,17 @@ public class SortByDocQuery extends Query {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         SortByDocQuery that = (SortByDocQuery) o;
-        return Objects.equals(subQuery, that.subQuery) &&
-                Objects.equals(scores, that.scores);
+        return hashCode == that.hashCode &&
+                Objects.equals(scores, that.scores) &&
+                Objects.equals(subQuery, that.subQuery) &&
+                desc == that.desc &&
+                Objects.equals(minScore, that.minScore) &&
+                Objects.equals(maxScore, that.maxScore) &&
+                Objects.equals(joinField, that.joinField);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(subQuery, scores);
+        return hashCode;
     }
 }
@@ -1,37 +1,39 @@
 package org.elasticsearch.search.query.sortbydoc;
 
 import org.apache.lucene.search.Query;
-import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.Version;
-import org.elasticsearch.action.get.GetRequest;
-import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
-import org.elasticsearch.common.lucene.BytesRefs;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
-import org.elasticsearch.index.mapper.Uid;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.QueryShardContext;
-import org.elasticsearch.search.query.sortbydoc.utils.XContentGetScoreMap;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupVersion;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * samuel
  * 19/11/15, 15:57
  */
 public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBuilder> {
+    // first version whose nodes read score encodings, chunks, join fields and lookup versions,
+    // the score field is only required before it
+    static final Version LOOKUP_OPTIONS_VERSION = Version.V_7_3_2;
+
     private String lookupIndex;
     private String lookupId;
     private String lookupRouting;
@@ -43,25 +45,53 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
     private Float maxScore;
     private QueryBuilder subQuery;
     private SortOrder sortOrder;
+    private ScoreEncoding scoreEncoding = ScoreEncoding.FLOAT32;
+    private String chunksField;
+    private String joinField;
+    // version of the lookup document read when the query is rewritten on the coordinating node,
+    // so that the shard request cache key changes with the lookup document
+    private LookupVersion lookupVersion;
+    private Supplier<LookupVersion> lookupVersionSupplier;
+    // given by the readers and parsers of the plugin, see LookupQueries#lookupService otherwise
+    private Supplier<ScoreLookupService> lookupService;
 
     public SortByDocQueryBuilder() {
     }
 
-    public SortByDocQueryBuilder(StreamInput in) throws IOException {
+    SortByDocQueryBuilder(Supplier<ScoreLookupService> lookupService) {
+        this.lookupService = lookupService;
+    }
+
+    public SortByDocQueryBuilder(StreamInput in, Supplier<ScoreLookupService> lookupService) throws IOException {
         super(in);
+        this.lookupService = lookupService;
         this.lookupIndex = in.readString();
         this.lookupId = in.readString();
         this.lookupRouting = in.readOptionalString();
         this.rootPath = in.readString();
         this.idField = in.readString();
-        this.scoreField = in.readString();
+        if (in.getVersion().onOrAfter(LOOKUP_OPTIONS_VERSION)) {
+            this.scoreField = in.readOptionalString();
+        } else {
+            this.scoreField = in.readString();
+        }
         this.sortOrder = SortOrder.values()[in.readInt()];
         this.subQuery = in.readNamedWriteable(QueryBuilder.class);
         this.minScore = in.readOptionalFloat();
         this.maxScore = in.readOptionalFloat();
+        if (in.getVersion().onOrAfter(LOOKUP_OPTIONS_VERSION)) {
+            this.scoreEncoding = ScoreEncoding.values()[in.readInt()];
+            this.chunksField = in.readOptionalString();
+            this.joinField = in.readOptionalString();
+            this.lookupVersion = in.readOptionalWriteable(LookupVersion::new);
+        }
     }
 
     public SortByDocQueryBuilder(String lookupIndex, String lookupId, String lookupRouting, String rootPath, String idField, String scoreField, QueryBuilder subQuery, SortOrder sortOrder, Float minScore, Float maxScore) {
+        this(lookupIndex, lookupId, lookupRouting, rootPath, idField, scoreField, subQuery, sortOrder, minScore, maxScore, ScoreEncoding.FLOAT32);
+    }
+
+    public SortByDocQueryBuilder(String lookupIndex, String lookupId, String lookupRouting, String rootPath, String idField, String scoreField, QueryBuilder subQuery, SortOrder sortOrder, Float minScore, Float maxScore, ScoreEncoding scoreEncoding) {
         this.lookupIndex = lookupIndex;
         this.lookupId = lookupId;
         this.lookupRouting = lookupRouting;
@@ -72,6 +102,7 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
         this.sortOrder = sortOrder;
         this.minScore = minScore;
         this.maxScore = maxScore;
+        this.scoreEncoding = scoreEncoding;
     }
 
     @Override
@@ -86,11 +117,31 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
         out.writeOptionalString(lookupRouting);
         out.writeString(rootPath);
         out.writeString(idField);
-        out.writeString(scoreField);
+        if (out.getVersion().onOrAfter(LOOKUP_OPTIONS_VERSION)) {
+            out.writeOptionalString(scoreField);
+        } else if (scoreField == null) {
+            throw new IllegalArgumentException("[sort_by_doc] score_encoding [" + scoreEncoding.getName()
+                    + "] is not supported by nodes before [" + LOOKUP_OPTIONS_VERSION + "]");
+        } else {
+            out.writeString(scoreField);
+        }
         out.writeInt(sortOrder.ordinal());
         out.writeNamedWriteable(subQuery);
         out.writeOptionalFloat(minScore);
         out.writeOptionalFloat(maxScore);
+        if (lookupVersionSupplier != null) {
+            throw new IllegalStateException("[sort_by_doc] the lookup version must be fetched before serializing the query, missing a rewriteAndFetch?");
+        }
+        // older nodes are not sent the lookup version, they read the current one themselves
+        if (out.getVersion().onOrAfter(LOOKUP_OPTIONS_VERSION)) {
+            out.writeInt(scoreEncoding.ordinal());
+            out.writeOptionalString(chunksField);
+            out.writeOptionalString(joinField);
+            out.writeOptionalWriteable(lookupVersion);
+        } else if (scoreEncoding != ScoreEncoding.FLOAT32 || chunksField != null || joinField != null) {
+            throw new IllegalArgumentException("[sort_by_doc] score_encoding, chunks and join_field are not supported by nodes before ["
+                    + LOOKUP_OPTIONS_VERSION + "]");
+        }
     }
 
     /**
@@ -173,6 +224,33 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
         return this;
     }
 
+    /**
+     * Sets how scores are held in memory, see {@link ScoreEncoding}. With {@link ScoreEncoding#RANK}, the position
+     * of an item in the list is its score and no score field is needed.
+     */
+    public SortByDocQueryBuilder scoreEncoding(ScoreEncoding scoreEncoding) {
+        this.scoreEncoding = scoreEncoding;
+        return this;
+    }
+
+    /**
+     * Sets the field of the lookup document listing the ids of the chunk documents holding the list, for lists too
+     * large to be held by a single document. Chunks are looked up in the same index, with the same routing.
+     */
+    public SortByDocQueryBuilder chunksField(String chunksField) {
+        this.chunksField = chunksField;
+        return this;
+    }
+
+    /**
+     * Sets the keyword field (with doc values) of the searched documents holding the keys of the list, rather than
+     * their _id. Several documents may share a key, a document with several keys gets the best score of its listed keys.
+     */
+    public SortByDocQueryBuilder joinField(String joinField) {
+        this.joinField = joinField;
+        return this;
+    }
+
     public void validate(Function<String, ElasticsearchException> exceptionProvider) {
         if (lookupId == null) {
             throw exceptionProvider.apply("[sort_by_doc] query lookup element requires specifying the doc_id");
@@ -186,7 +264,7 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
         if (idField == null) {
             throw exceptionProvider.apply("[sort_by_doc] query lookup element requires specifying the id");
         }
-        if (scoreField == null) {
+        if (scoreField == null && scoreEncoding != ScoreEncoding.RANK) {
             throw exceptionProvider.apply("[sort_by_doc] query lookup element requires specifying the score");
         }
         if (subQuery == null) {
@@ -210,12 +288,17 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
                 Objects.equals(subQuery, o.subQuery) &&
                 Objects.equals(minScore, o.minScore) &&
                 Objects.equals(maxScore, o.maxScore) &&
-                sortOrder == o.sortOrder;
+                sortOrder == o.sortOrder &&
+                scoreEncoding == o.scoreEncoding &&
+                Objects.equals(chunksField, o.chunksField) &&
+                Objects.equals(joinField, o.joinField) &&
+                Objects.equals(lookupVersion, o.lookupVersion) &&
+                Objects.equals(lookupVersionSupplier, o.lookupVersionSupplier);
     }
 
     @Override
     protected int doHashCode() {
-        return Objects.hash(lookupIndex, lookupId, lookupRouting, rootPath, idField, scoreField, subQuery, sortOrder, minScore, maxScore);
+        return Objects.hash(lookupIndex, lookupId, lookupRouting, rootPath, idField, scoreField, subQuery, sortOrder, minScore, maxScore, scoreEncoding, chunksField, joinField, lookupVersion, lookupVersionSupplier);
     }
 
     @Override
@@ -237,8 +320,17 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
 
         builder.field("root", rootPath);
         builder.field("id", idField);
-        builder.field("score", scoreField);
+        if (scoreField != null) {
+            builder.field("score", scoreField);
+        }
         builder.field("sort_order", sortOrder.name());
+        builder.field("score_encoding", scoreEncoding.getName());
+        if (chunksField != null) {
+            builder.field("chunks", chunksField);
+        }
+        if (joinField != null) {
+            builder.field("join_field", joinField);
+        }
         builder.field("min_score", minScore);
         builder.field("max_score", maxScore);
         printBoostAndQueryName(builder);
@@ -247,61 +339,64 @@ public class SortByDocQueryBuilder extends AbstractQueryBuilder<SortByDocQueryBu
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        MappedFieldType _idType = context.getMapperService().fullName("_id");
-
-
-        if (_idType == null || !(_idType.typeName().equals(IdFieldMapper.CONTENT_TYPE)))
-            throw new IllegalArgumentException("[sort_by_doc] the _id field must be a defaultly indexed UID field");
-
+        if (joinField != null) {
+            MappedFieldType joinType = context.fieldMapper(joinField);
+            if (joinType == null || !joinType.typeName().equals(KeywordFieldMapper.CONTENT_TYPE) || !joinType.hasDocValues())
+                throw new IllegalArgumentException("[sort_by_doc] the join_field [" + joinField + "] must be a keyword field with doc values");
+        } else {
+            MappedFieldType _idType = context.getMapperService().fullName("_id");
+
+            if (_idType == null || !(_idType.typeName().equals(IdFieldMapper.CONTENT_TYPE)))
+                throw new IllegalArgumentException("[sort_by_doc] the _id field must be a defaultly indexed UID field");
+        }
 
         // external lookup of score values
-        GetRequest request = new GetRequest(lookupIndex, lookupId).preference("_local").routing(lookupRouting);
-        GetResponse getResponse = context.getClient().get(request).actionGet();
-
-        // ids => scores
-        Map<String, Float> scores = new HashMap<>();
-        // Encoded id => scores
-        Map<BytesRef, Float> termsScores = new HashMap<>();
-
-        if (getResponse.isExists()) {
-            scores = XContentGetScoreMap.extractMap(getResponse.getSourceAsMap(), rootPath, idField, scoreField);
-            if (scores == null) scores = new HashMap<>();
-            final boolean isDesc = sortOrder.equals(SortOrder.DESC);
-
-            final boolean is5xIndex = context.indexVersionCreated().before(Version.V_6_0_0_beta1);
-            for (Map.Entry<String, Float> score : scores.entrySet()) {
-                BytesRef id;
-                if (is5xIndex) {
-                    // 5.x index with index.mapping.single_type = true
-                    id = BytesRefs.toBytesRef(score.getKey());
-                } else {
-                    id = Uid.encodeId(score.getKey());
-                }
-                float scoreValue = score.getValue();
-                if (minScore != null && scoreValue < minScore) {
-                    continue;
-                }
-                if (maxScore != null && scoreValue > maxScore) {
-                    continue;
-                }
-                termsScores.put(id, isDesc ? scoreValue : 1/(1e-20f + scoreValue));
-            }
+        ScoreLookupService service = LookupQueries.lookupService(lookupService, SortByDocQueryParser.NAME);
+        ScoreTable table;
+        if (context.indexVersionCreated().before(Version.V_6_0_0_beta1)) {
+            // 5.x index with index.mapping.single_type = true stores raw ids
+            table = ScoreTable.build(service.fetch(toLookup()), true, scoreEncoding);
+        } else {
+            ScoreLookup lookup = toLookup();
+            service.recordUse(context.index().getName(), lookup);
+            table = service.getTable(lookup, lookupVersion);
         }
-        if (scores.isEmpty()) {
+        if (table.isEmpty()) {
             return subQuery.toQuery(context);
         }
 
-        // filter to only keep elements referenced in the lookup document
-        Query filter = _idType.termsQuery(new ArrayList<>(scores.keySet()), context);
+        return new SortByDocQuery(subQuery.toQuery(context), table, sortOrder.equals(SortOrder.DESC), minScore, maxScore, joinField, service);
+    }
 
-        return new SortByDocQuery(subQuery.toQuery(context), filter, termsScores);
+    ScoreLookup toLookup() {
+        return new ScoreLookup(lookupIndex, lookupId, lookupRouting, rootPath, idField, scoreField, scoreEncoding, chunksField, joinField);
     }
 
     @Override
     protected QueryBuilder doRewrite(QueryRewriteContext queryShardContext) throws IOException {
+        if (lookupService == null) {
+            SortByDocQueryBuilder copy = copy(subQuery, lookupVersion, lookupVersionSupplier);
+            copy.lookupService = LookupQueries.lookupService(queryShardContext, getWriteableName());
+            return copy;
+        }
+        SortByDocQueryBuilder pinned = LookupQueries.pinVersion(this, queryShardContext, toLookup(), lookupVersion, lookupVersionSupplier,
+                (version, fetching) -> copy(subQuery, version, fetching));
+        if (pinned != null) {
+            return pinned;
+        }
         QueryBuilder newSubQuery = subQuery.rewrite(queryShardContext);
         if (newSubQuery == subQuery)
             return this;
-        return new SortByDocQueryBuilder(lookupIndex, lookupId, lookupRouting, rootPath, idField, scoreField, newSubQuery, sortOrder, minScore, maxScore);
+        return copy(newSubQuery, lookupVersion, null);
+    }
+
+    private SortByDocQueryBuilder copy(QueryBuilder subQuery, LookupVersion lookupVersion, Supplier<LookupVersion> lookupVersionSupplier) {
+        SortByDocQueryBuilder copy = new SortByDocQueryBuilder(lookupIndex, lookupId, lookupRouting, rootPath, idField, scoreField, subQuery, sortOrder, minScore, maxScore, scoreEncoding);
+        copy.chunksField = chunksField;
+        copy.joinField = joinField;
+        copy.lookupVersion = lookupVersion;
+        copy.lookupVersionSupplier = lookupVersionSupplier;
+        copy.lookupService = lookupService;
+        return copy;
     }
 }
@@ -21,10 +21,13 @@ package org.elasticsearch.search.query.sortbydoc;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.function.Supplier;
 
 import static org.elasticsearch.index.query.AbstractQueryBuilder.parseInnerQueryBuilder;
 
@@ -40,15 +43,18 @@ import static org.elasticsearch.index.query.AbstractQueryBuilder.parseInnerQuery
  *  "score": "field_for_score"
  *  "query": {...}
  *  "sort_order: "ASC / DESC"
+ *  "score_encoding": "float32 / float16 / uint8_quantized / rank"
+ *  "chunks": "field_for_chunk_ids"
+ *  "join_field": "keyword_field_for_ids"
  * }
  * </pre>
  */
 public class SortByDocQueryParser {
     public static final String NAME = "sort_by_doc";
 
-    public static SortByDocQueryBuilder fromXContent(XContentParser parser) throws IOException {
+    public static SortByDocQueryBuilder fromXContent(XContentParser parser, Supplier<ScoreLookupService> lookupService) throws IOException {
         String currentFieldName = null;
-        SortByDocQueryBuilder builder = new SortByDocQueryBuilder();
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder(lookupService);
 
         XContentParser.Token token;
 
@@ -74,6 +80,10 @@ public class SortByDocQueryParser {
                     builder.idField(parser.text());
                 } else if ("score".equals(currentFieldName)) {
                     builder.scoreField(parser.text());
+                } else if ("chunks".equals(currentFieldName)) {
+                    builder.chunksField(parser.text());
+                } else if ("join_field".equals(currentFieldName)) {
+                    builder.joinField(parser.text());
                 } else if ("routing".equals(currentFieldName)) {
                     builder.lookupRouting(parser.textOrNull());
                 } else if ("max_score".equals(currentFieldName)) {
@@ -84,6 +94,12 @@ public class SortByDocQueryParser {
                     builder.queryName(parser.text());
                 } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                     builder.boost(parser.floatValue());
+                } else if ("score_encoding".equals(currentFieldName)) {
+                    try {
+                        builder.scoreEncoding(ScoreEncoding.fromString(parser.text()));
+                    } catch (IllegalArgumentException e) {
+                        throw new ParsingException(parser.getTokenLocation(), e.getMessage());
+                    }
                 } else if ("sort_order".equals(currentFieldName)) {
                     try {
                         builder.sortOrder(SortOrder.valueOf(parser.text()));
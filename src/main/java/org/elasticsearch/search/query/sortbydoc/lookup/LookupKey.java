@@ -0,0 +1,46 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import java.util.Objects;
+
+/**
+ * Identifies the content of a lookup list: its coordinates and the version of its lookup document.
+ */
+public class LookupKey {
+    private final ScoreLookup lookup;
+    private final LookupVersion version;
+    private final int hashCode;
+
+    public LookupKey(ScoreLookup lookup, LookupVersion version) {
+        this.lookup = lookup;
+        this.version = version;
+        this.hashCode = Objects.hash(lookup, version);
+    }
+
+    public ScoreLookup getLookup() {
+        return lookup;
+    }
+
+    public LookupVersion getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LookupKey that = (LookupKey) o;
+        return hashCode == that.hashCode &&
+                Objects.equals(lookup, that.lookup) &&
+                Objects.equals(version, that.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return lookup + "@" + version;
+    }
+}
@@ -0,0 +1,83 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Version of a lookup document: the concrete index it was read from (the lookup may go through an alias),
+ * its seq_no and primary term. Any change of the document changes its version.
+ */
+public class LookupVersion implements Writeable {
+    private final String index;
+    private final boolean exists;
+    private final long seqNo;
+    private final long primaryTerm;
+
+    public LookupVersion(String index, boolean exists, long seqNo, long primaryTerm) {
+        this.index = index;
+        this.exists = exists;
+        this.seqNo = seqNo;
+        this.primaryTerm = primaryTerm;
+    }
+
+    public LookupVersion(StreamInput in) throws IOException {
+        this.index = in.readString();
+        this.exists = in.readBoolean();
+        this.seqNo = in.readZLong();
+        this.primaryTerm = in.readVLong();
+    }
+
+    public static LookupVersion of(GetResponse getResponse) {
+        return new LookupVersion(getResponse.getIndex(), getResponse.isExists(), getResponse.getSeqNo(), getResponse.getPrimaryTerm());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeBoolean(exists);
+        out.writeZLong(seqNo);
+        out.writeVLong(primaryTerm);
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public long getSeqNo() {
+        return seqNo;
+    }
+
+    public long getPrimaryTerm() {
+        return primaryTerm;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LookupVersion that = (LookupVersion) o;
+        return exists == that.exists &&
+                seqNo == that.seqNo &&
+                primaryTerm == that.primaryTerm &&
+                Objects.equals(index, that.index);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, exists, seqNo, primaryTerm);
+    }
+
+    @Override
+    public String toString() {
+        return index + "[seq_no=" + seqNo + ", primary_term=" + primaryTerm + "]";
+    }
+}
@@ -0,0 +1,177 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the lists most used to search an index warm: they are regularly fetched, parsed and resolved against
+ * the segments of the shards of the index held by this node. Segments that were already resolved are cache
+ * hits, so each round only pays for the segments created by refreshes and merges since the previous one,
+ * and searches find these lists in cache. Rounds are skipped while neither the readers of the shards nor the
+ * most used lists change: a new version of a list alone is parsed by the first search that uses it, or warmed
+ * with the next change of the readers. Nothing is scheduled while no list is to be kept warm.
+ */
+public class LookupWarmer implements IndexEventListener {
+    private static final Logger log = LogManager.getLogger(LookupWarmer.class);
+
+    public static final Setting<Integer> HOT_LOOKUPS_SETTING =
+            Setting.intSetting("index.sort_by_doc.warmer.hot_lookups", 0, 0, Setting.Property.IndexScope, Setting.Property.Dynamic);
+    public static final Setting<TimeValue> INTERVAL_SETTING =
+            Setting.timeSetting("index.sort_by_doc.warmer.interval", TimeValue.timeValueSeconds(1), TimeValue.timeValueMillis(100),
+                    Setting.Property.IndexScope);
+    // usage counts are halved at that interval, lists which are not used anymore cool down
+    public static final Setting<TimeValue> DECAY_INTERVAL_SETTING =
+            Setting.timeSetting("index.sort_by_doc.warmer.decay_interval", TimeValue.timeValueMinutes(1), TimeValue.timeValueSeconds(1),
+                    Setting.Property.IndexScope);
+
+    private final ThreadPool threadPool;
+    private final ScoreLookupService service;
+    private final String index;
+    private final TimeValue interval;
+    private final TimeValue decayInterval;
+    private final Set<IndexShard> shards = ConcurrentCollections.newConcurrentSet();
+    // readers and lists warmed by the previous round
+    private final Map<ShardId, IndexReader.CacheKey> readers = ConcurrentCollections.newConcurrentMap();
+    private volatile List<ScoreLookup> warmed = Collections.emptyList();
+    private volatile int hotLookups;
+    private Scheduler.Cancellable task;
+    private Scheduler.Cancellable decayTask;
+
+    public LookupWarmer(ThreadPool threadPool, ScoreLookupService service, String index, Settings indexSettings) {
+        this.threadPool = threadPool;
+        this.service = service;
+        this.index = index;
+        this.interval = INTERVAL_SETTING.get(indexSettings);
+        this.decayInterval = DECAY_INTERVAL_SETTING.get(indexSettings);
+        this.hotLookups = HOT_LOOKUPS_SETTING.get(indexSettings);
+    }
+
+    public synchronized void setHotLookups(int hotLookups) {
+        this.hotLookups = hotLookups;
+        reschedule();
+    }
+
+    @Override
+    public synchronized void afterIndexShardStarted(IndexShard indexShard) {
+        shards.add(indexShard);
+        reschedule();
+    }
+
+    @Override
+    public synchronized void beforeIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+        shards.remove(indexShard);
+        readers.remove(shardId);
+        reschedule();
+    }
+
+    private void reschedule() {
+        boolean active = hotLookups > 0 && shards.isEmpty() == false;
+        if (active && task == null) {
+            task = threadPool.scheduleWithFixedDelay(this::warm, interval, ThreadPool.Names.WARMER);
+            decayTask = threadPool.scheduleWithFixedDelay(() -> service.decayUsage(index), decayInterval, ThreadPool.Names.WARMER);
+        } else if (active == false && task != null) {
+            task.cancel();
+            decayTask.cancel();
+            task = null;
+            decayTask = null;
+        }
+    }
+
+    void warm() {
+        List<ScoreLookup> hot = service.hotLookups(index, hotLookups);
+        List<Engine.Searcher> searchers = new ArrayList<>();
+        try {
+            Map<ShardId, IndexReader.CacheKey> current = new HashMap<>();
+            // a reader without a cache key may have changed
+            boolean changed = hot.equals(warmed) == false;
+            for (IndexShard shard : shards) {
+                Engine.Searcher searcher;
+                try {
+                    searcher = shard.acquireSearcher("sort_by_doc_warmer");
+                } catch (Exception e) {
+                    log.debug(() -> new ParameterizedMessage("[warm] failed to acquire a searcher of shard {}", shard.shardId()), e);
+                    continue;
+                }
+                searchers.add(searcher);
+                IndexReader.CacheHelper cacheHelper = searcher.getDirectoryReader().getReaderCacheHelper();
+                if (cacheHelper != null) {
+                    current.put(shard.shardId(), cacheHelper.getKey());
+                } else {
+                    changed = true;
+                }
+            }
+            if (changed == false && current.equals(readers)) {
+                return;
+            }
+            // versions are read without the source of the lists, those already parsed are cache hits
+            Map<ScoreLookup, LookupVersion> versions;
+            try {
+                versions = service.currentVersions(hot);
+            } catch (Exception e) {
+                log.debug(() -> new ParameterizedMessage("[warm] failed to read the versions of the hot lists of index [{}]", index), e);
+                return;
+            }
+            boolean warm = versions.size() == hot.size();
+            for (Map.Entry<ScoreLookup, LookupVersion> entry : versions.entrySet()) {
+                warm &= warm(entry.getKey(), entry.getValue(), searchers);
+            }
+            if (warm == false) {
+                // tried again by the next round
+                return;
+            }
+            warmed = hot;
+            readers.clear();
+            readers.putAll(current);
+        } finally {
+            Releasables.close(searchers);
+        }
+    }
+
+    private boolean warm(ScoreLookup lookup, LookupVersion version, List<Engine.Searcher> searchers) {
+        ScoreTable table;
+        try {
+            table = service.getTable(lookup, version);
+        } catch (Exception e) {
+            log.debug(() -> new ParameterizedMessage("[warm] failed to fetch {} for index [{}]", lookup, index), e);
+            return false;
+        }
+        boolean warm = true;
+        for (Engine.Searcher searcher : searchers) {
+            try {
+                for (LeafReaderContext leaf : searcher.reader().leaves()) {
+                    if (lookup.getJoinField() != null) {
+                        service.join(table, leaf, lookup.getJoinField());
+                    } else {
+                        service.resolve(table, leaf);
+                    }
+                }
+            } catch (Exception e) {
+                log.debug(() -> new ParameterizedMessage("[warm] failed to resolve {} in index [{}]", lookup, index), e);
+                warm = false;
+            }
+        }
+        return warm;
+    }
+}
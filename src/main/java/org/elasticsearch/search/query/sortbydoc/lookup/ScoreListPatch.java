@@ -0,0 +1,136 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.query.sortbydoc.utils.XContentGetScoreMap;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A delta to apply to a lookup list.
+ * <pre>
+ * {
+ *  "root": "path_to_the_list_of_scores",
+ *  "id": "field_for_ids",
+ *  "score": "field_for_score",
+ *  "upsert": { "doc_id_1": 1.5, "doc_id_2": 3 },
+ *  "remove": [ "doc_id_3" ]
+ * }
+ * </pre>
+ * Upserts are applied first, then removals.
+ */
+public class ScoreListPatch {
+    private final String rootPath;
+    private final String idField;
+    private final String scoreField;
+    private final Map<String, Float> upserts;
+    private final Set<String> removals;
+
+    public ScoreListPatch(String rootPath, String idField, String scoreField, Map<String, Float> upserts, Set<String> removals) {
+        this.rootPath = rootPath;
+        this.idField = idField;
+        this.scoreField = scoreField;
+        this.upserts = upserts;
+        this.removals = removals;
+    }
+
+    public static ScoreListPatch fromXContent(XContentParser parser) throws IOException {
+        Map<String, Object> body = parser.map();
+        Map<String, Float> upserts = new HashMap<>();
+        Set<String> removals = new HashSet<>();
+        for (Map.Entry<String, Object> field : body.entrySet()) {
+            switch (field.getKey()) {
+                case "root":
+                case "id":
+                case "score":
+                    break;
+                case "upsert":
+                    if (!(field.getValue() instanceof Map)) {
+                        throw new IllegalArgumentException("[sort_by_doc] upsert must be an object of ids => scores");
+                    }
+                    for (Map.Entry<?, ?> upsert : ((Map<?, ?>) field.getValue()).entrySet()) {
+                        if (!(upsert.getValue() instanceof Number)) {
+                            throw new IllegalArgumentException("[sort_by_doc] score of [" + upsert.getKey() + "] must be a number");
+                        }
+                        upserts.put(upsert.getKey().toString(), ((Number) upsert.getValue()).floatValue());
+                    }
+                    break;
+                case "remove":
+                    if (!(field.getValue() instanceof List)) {
+                        throw new IllegalArgumentException("[sort_by_doc] remove must be a list of ids");
+                    }
+                    for (Object id : (List<?>) field.getValue()) {
+                        removals.add(id.toString());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("[sort_by_doc] update does not support [" + field.getKey() + "]");
+            }
+        }
+        return new ScoreListPatch(requiredField(body, "root"), requiredField(body, "id"), requiredField(body, "score"), upserts, removals);
+    }
+
+    private static String requiredField(Map<String, Object> body, String name) {
+        Object value = body.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("[sort_by_doc] update requires specifying the " + name);
+        }
+        return value.toString();
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public String getIdField() {
+        return idField;
+    }
+
+    public String getScoreField() {
+        return scoreField;
+    }
+
+    public Map<String, Float> getUpserts() {
+        return Collections.unmodifiableMap(upserts);
+    }
+
+    public Set<String> getRemovals() {
+        return Collections.unmodifiableSet(removals);
+    }
+
+    /**
+     * Applies the delta in place to the source of a lookup document.
+     */
+    @SuppressWarnings("unchecked")
+    public void apply(Map<String, Object> source) {
+        // lists parsed from a source are mutable lists of objects
+        List<Object> items = (List<Object>) XContentGetScoreMap.extractList(source, rootPath);
+        if (items == null) {
+            throw new IllegalArgumentException("[sort_by_doc] no list of scores found at [" + rootPath + "]");
+        }
+        // the last occurrence of an id wins, as when the list is read
+        Map<String, Map<String, Object>> itemsById = new HashMap<>();
+        for (Object o : items) {
+            if (o instanceof Map && ((Map<?, ?>) o).get(idField) instanceof String) {
+                itemsById.put((String) ((Map<?, ?>) o).get(idField), (Map<String, Object>) o);
+            }
+        }
+        for (Map.Entry<String, Float> upsert : upserts.entrySet()) {
+            Map<String, Object> item = itemsById.get(upsert.getKey());
+            if (item == null) {
+                item = new HashMap<>();
+                item.put(idField, upsert.getKey());
+                items.add(item);
+            }
+            item.put(scoreField, upsert.getValue());
+        }
+        if (!removals.isEmpty()) {
+            items.removeIf(o -> o instanceof Map && removals.contains(((Map<?, ?>) o).get(idField)));
+        }
+    }
+}
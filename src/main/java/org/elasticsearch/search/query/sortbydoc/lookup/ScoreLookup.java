@@ -0,0 +1,213 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
+import org.elasticsearch.search.query.sortbydoc.utils.XContentGetScoreMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Coordinates of a lookup document and of the list of scores it holds.
+ * <p>
+ * A large list may be split across chunk documents of the lookup index: the lookup document is then a manifest
+ * whose chunks field lists the ids of its chunks, each chunk holding a part of the list at the same root path.
+ */
+public class ScoreLookup {
+    private final String index;
+    private final String id;
+    private final String routing;
+    private final String rootPath;
+    private final String idField;
+    private final String scoreField;
+    private final ScoreEncoding encoding;
+    private final String chunksField;
+    private final String joinField;
+
+    public ScoreLookup(String index, String id, String routing, String rootPath, String idField, String scoreField,
+                       ScoreEncoding encoding) {
+        this(index, id, routing, rootPath, idField, scoreField, encoding, null, null);
+    }
+
+    /**
+     * @param chunksField the field of the lookup document listing the ids of its chunks, null if the list is not chunked
+     * @param joinField the keyword field holding the keys of the list in the searched index, null if the list holds _ids
+     */
+    public ScoreLookup(String index, String id, String routing, String rootPath, String idField, String scoreField,
+                       ScoreEncoding encoding, String chunksField, String joinField) {
+        this.index = index;
+        this.id = id;
+        this.routing = routing;
+        this.rootPath = rootPath;
+        this.idField = idField;
+        // ranks are positions in the list, scores are not read
+        this.scoreField = encoding == ScoreEncoding.RANK ? null : scoreField;
+        this.encoding = encoding;
+        this.chunksField = chunksField;
+        this.joinField = joinField;
+    }
+
+    /**
+     * Reads the lookup coordinates from script params, using the same names as the query.
+     */
+    public static ScoreLookup fromParams(Map<String, Object> params) {
+        ScoreEncoding encoding = params.get("score_encoding") == null ? ScoreEncoding.FLOAT32
+                : ScoreEncoding.fromString(params.get("score_encoding").toString());
+        return new ScoreLookup(
+                requiredParam(params, "index"),
+                requiredParam(params, "doc_id"),
+                params.get("routing") == null ? null : params.get("routing").toString(),
+                requiredParam(params, "root"),
+                requiredParam(params, "id"),
+                encoding == ScoreEncoding.RANK ? null : requiredParam(params, "score"),
+                encoding,
+                params.get("chunks") == null ? null : params.get("chunks").toString(),
+                null);
+    }
+
+    private static String requiredParam(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("[sort_by_doc] script requires the [" + name + "] param");
+        }
+        return value.toString();
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public String getIdField() {
+        return idField;
+    }
+
+    public String getScoreField() {
+        return scoreField;
+    }
+
+    public ScoreEncoding getEncoding() {
+        return encoding;
+    }
+
+    public String getChunksField() {
+        return chunksField;
+    }
+
+    public String getJoinField() {
+        return joinField;
+    }
+
+    /**
+     * @return the same lookup, with scores held with another encoding
+     */
+    public ScoreLookup withEncoding(ScoreEncoding encoding) {
+        return new ScoreLookup(index, id, routing, rootPath, idField, scoreField, encoding, chunksField, joinField);
+    }
+
+    public GetRequest getRequest() {
+        return new GetRequest(index, id).preference("_local").routing(routing);
+    }
+
+    /**
+     * Request for the seq_no and primary term of the lookup document only, without its source
+     */
+    public GetRequest versionRequest() {
+        return getRequest().fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
+    }
+
+    /**
+     * Multi get item for the seq_no and primary term of the lookup document only, without its source
+     */
+    public MultiGetRequest.Item versionItem() {
+        return new MultiGetRequest.Item(index, id).routing(routing).fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
+    }
+
+    /**
+     * Request for the chunks of the list, in the order they are listed by the manifest
+     */
+    public MultiGetRequest chunksRequest(List<String> chunkIds) {
+        MultiGetRequest request = new MultiGetRequest().preference("_local");
+        for (String chunkId : chunkIds) {
+            request.add(new MultiGetRequest.Item(index, chunkId).routing(routing));
+        }
+        return request;
+    }
+
+    /**
+     * @return the ids of the chunks listed by a manifest, empty if the list is not chunked
+     */
+    public List<String> chunkIds(Map<String, Object> source) {
+        if (chunksField == null) {
+            return Collections.emptyList();
+        }
+        Object chunks = XContentMapValues.extractValue(chunksField, source);
+        if (chunks == null) {
+            return Collections.emptyList();
+        }
+        if (!(chunks instanceof List)) {
+            throw new IllegalArgumentException("[sort_by_doc] chunks field [" + chunksField + "] of [" + this + "] must be a list of ids");
+        }
+        List<String> chunkIds = new ArrayList<>();
+        for (Object chunk : (List) chunks) {
+            chunkIds.add(chunk.toString());
+        }
+        return chunkIds;
+    }
+
+    public Map<String, Float> extract(GetResponse getResponse) {
+        if (!getResponse.isExists()) {
+            return Collections.emptyMap();
+        }
+        return extract(getResponse.getSourceAsMap());
+    }
+
+    public Map<String, Float> extract(Map<String, Object> source) {
+        Map<String, Float> scores = XContentGetScoreMap.extractMap(source, rootPath, idField, scoreField);
+        return scores == null ? Collections.emptyMap() : scores;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ScoreLookup that = (ScoreLookup) o;
+        return Objects.equals(index, that.index) &&
+                Objects.equals(id, that.id) &&
+                Objects.equals(routing, that.routing) &&
+                Objects.equals(rootPath, that.rootPath) &&
+                Objects.equals(idField, that.idField) &&
+                Objects.equals(scoreField, that.scoreField) &&
+                encoding == that.encoding &&
+                Objects.equals(chunksField, that.chunksField) &&
+                Objects.equals(joinField, that.joinField);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, id, routing, rootPath, idField, scoreField, encoding, chunksField, joinField);
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + id;
+    }
+}
@@ -0,0 +1,17 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+
+/**
+ * Hands the request circuit breaker of the node over to the {@link ScoreLookupService}: the breaker service
+ * is not given to plugin components, this is created by the injector once the node is built.
+ */
+public class ScoreLookupBreaker {
+
+    @Inject
+    public ScoreLookupBreaker(CircuitBreakerService breakerService, ScoreLookupService lookupService) {
+        lookupService.setBreaker(breakerService.getBreaker(CircuitBreaker.REQUEST));
+    }
+}
@@ -0,0 +1,470 @@
+package org.elasticsearch.search.query.sortbydoc.lookup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Accountable;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.search.query.sortbydoc.scoring.LeafScores;
+import org.elasticsearch.search.query.sortbydoc.scoring.OrdinalScores;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
+import org.elasticsearch.search.query.sortbydoc.utils.XContentGetScoreMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node level cache of parsed lookup lists, keyed by the version (seq_no and primary term)
+ * of the lookup document so that a cached list is never stale: a new version is a new key.
+ * Lists resolved against a segment are cached as well, until the segment is closed.
+ * <p>
+ * The service also counts which lists are used to search each index, for the {@link LookupWarmer}.
+ * <p>
+ * One instance per node, created by the plugin along with its components and handed to the query builders
+ * through the readers and parsers the plugin registers.
+ */
+public class ScoreLookupService {
+    private static final Logger log = LogManager.getLogger(ScoreLookupService.class);
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+            Setting.memorySizeSetting("sort_by_doc.lookup_cache.size", "5%", Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> LEAF_CACHE_SIZE_SETTING =
+            Setting.memorySizeSetting("sort_by_doc.leaf_cache.size", "2%", Setting.Property.NodeScope);
+    // chunks are parsed by a single thread each, larger chunks must be split further
+    public static final Setting<ByteSizeValue> MAX_CHUNK_SIZE_SETTING =
+            Setting.byteSizeSetting("sort_by_doc.lookup.max_chunk_size", new ByteSizeValue(16, ByteSizeUnit.MB), Setting.Property.NodeScope);
+
+    // chunks fetched by a single multi get, which holds at most that many times the max chunk size
+    static final int CHUNKS_PER_FETCH = 8;
+
+    // at most that many lists are counted per index, new lists are counted again once cold ones are dropped
+    private static final int MAX_COUNTED_LOOKUPS = 10_000;
+
+    private final Cache<LookupKey, ScoreTable> cache;
+    private final Cache<LeafKey, Accountable> leaves;
+    private final Set<IndexReader.CacheKey> segments = ConcurrentCollections.newConcurrentSet();
+    private final Map<String, Map<ScoreLookup, AtomicLong>> usage = ConcurrentCollections.newConcurrentMap();
+    // lists are read with the client of the node rather than the one of the search context, which would make
+    // requests that use them uncacheable
+    private final Client client;
+    private final ExecutorService parsers;
+    // cached tables are accounted to the request circuit breaker of the node, see ScoreLookupBreaker
+    private volatile CircuitBreaker breaker = new NoopCircuitBreaker(CircuitBreaker.REQUEST);
+    private final long maxChunkSize;
+
+    /**
+     * @param parsers executor parsing the chunks of a list concurrently
+     */
+    public ScoreLookupService(Settings settings, Client client, ExecutorService parsers) {
+        this.cache = CacheBuilder.<LookupKey, ScoreTable>builder()
+                .setMaximumWeight(CACHE_SIZE_SETTING.get(settings).getBytes())
+                .weigher((key, table) -> table.ramBytesUsed())
+                .removalListener(notification -> {
+                    // the empty table is shared and never accounted, see load
+                    if (notification.getValue() != ScoreTable.EMPTY) {
+                        breaker.addWithoutBreaking(-notification.getValue().ramBytesUsed());
+                    }
+                })
+                .build();
+        this.leaves = CacheBuilder.<LeafKey, Accountable>builder()
+                .setMaximumWeight(LEAF_CACHE_SIZE_SETTING.get(settings).getBytes())
+                .weigher((key, leaf) -> leaf.ramBytesUsed())
+                .build();
+        this.client = client;
+        this.parsers = parsers;
+        this.maxChunkSize = MAX_CHUNK_SIZE_SETTING.get(settings).getBytes();
+    }
+
+    public void setBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Returns the scores of a version of the lookup document, only fetching and parsing its source
+     * when that version is not cached yet. Concurrent requests for the same version, from the shards
+     * of one search or from concurrent searches, wait for a single fetch and share its result.
+     *
+     * @param version the version to read, null to read the current one
+     */
+    public ScoreTable getTable(ScoreLookup lookup, LookupVersion version) {
+        if (version == null) {
+            version = currentVersion(lookup);
+        }
+        if (!version.exists()) {
+            return ScoreTable.EMPTY;
+        }
+        LookupKey key = new LookupKey(lookup, version);
+        try {
+            return cache.computeIfAbsent(key, k -> load(lookup));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ElasticsearchException("[sort_by_doc] failed to load lookup list {}", e.getCause(), key);
+        }
+    }
+
+    /**
+     * @return the current version of the lookup document, read without its source
+     */
+    public LookupVersion currentVersion(ScoreLookup lookup) {
+        return LookupVersion.of(client.get(lookup.versionRequest()).actionGet());
+    }
+
+    /**
+     * Reads the current versions of lookup documents with a single multi get, without their source
+     *
+     * @return the versions by lookup, lookups whose version could not be read are left out
+     */
+    public Map<ScoreLookup, LookupVersion> currentVersions(List<ScoreLookup> lookups) {
+        if (lookups.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        MultiGetRequest request = new MultiGetRequest().preference("_local");
+        for (ScoreLookup lookup : lookups) {
+            request.add(lookup.versionItem());
+        }
+        MultiGetItemResponse[] responses = client.multiGet(request).actionGet().getResponses();
+        Map<ScoreLookup, LookupVersion> versions = new LinkedHashMap<>();
+        for (int i = 0; i < responses.length; ++i) {
+            if (responses[i].isFailed()) {
+                log.debug("[versions] failed to read the version of {}: {}", lookups.get(i), responses[i].getFailure().getMessage());
+            } else {
+                versions.put(lookups.get(i), LookupVersion.of(responses[i].getResponse()));
+            }
+        }
+        return versions;
+    }
+
+    private ScoreTable load(ScoreLookup lookup) {
+        GetResponse getResponse = client.get(lookup.getRequest()).actionGet();
+        if (!getResponse.isExists()) {
+            // deleted since its version was read, cached without being accounted to the breaker
+            return ScoreTable.EMPTY;
+        }
+        // the document may have changed since its version was read: the table is fingerprinted with what was actually parsed
+        LookupKey key = new LookupKey(lookup, LookupVersion.of(getResponse));
+        log.trace("[load] parsing {}", key);
+        // keys of a join field are indexed as is
+        ScoreTable table = ScoreTable.build(extract(lookup, getResponse), lookup.getJoinField() != null, lookup.getEncoding(), key);
+        breaker.addEstimateBytesAndMaybeBreak(table.ramBytesUsed(), "<sort_by_doc lookup list " + key + ">");
+        return table;
+    }
+
+    /**
+     * Fetches the current version of a lookup list without caching it, empty if the lookup document does not exist
+     */
+    public Map<String, Float> fetch(ScoreLookup lookup) {
+        return extract(lookup, client.get(lookup.getRequest()).actionGet());
+    }
+
+    /**
+     * Extracts the ids => scores of a lookup document and, when it is a manifest, of its chunks.
+     * Chunks are fetched by multi gets of at most {@value #CHUNKS_PER_FETCH} chunks and parsed concurrently,
+     * while the next ones are fetched. They are merged in the order of the manifest so that later chunks win
+     * over earlier ones and ranks follow each other. The items held by the manifest itself, if any, come first.
+     */
+    private Map<String, Float> extract(ScoreLookup lookup, GetResponse getResponse) {
+        if (!getResponse.isExists()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> source = getResponse.getSourceAsMap();
+        List<String> chunkIds = lookup.chunkIds(source);
+        if (chunkIds.isEmpty()) {
+            return lookup.extract(source);
+        }
+
+        List<Future<Chunk>> parsed = new ArrayList<>(chunkIds.size());
+        try {
+            for (int from = 0; from < chunkIds.size(); from += CHUNKS_PER_FETCH) {
+                List<String> batch = chunkIds.subList(from, Math.min(from + CHUNKS_PER_FETCH, chunkIds.size()));
+                MultiGetResponse chunksResponse = client.multiGet(lookup.chunksRequest(batch)).actionGet();
+                // a failed, missing or oversized chunk fails the list before the next batch is fetched
+                for (MultiGetItemResponse item : chunksResponse.getResponses()) {
+                    GetResponse chunk = checkChunk(lookup, item);
+                    parsed.add(parsers.submit(() -> new Chunk(lookup, chunk.getSourceAsMap())));
+                }
+            }
+        } catch (RuntimeException e) {
+            parsed.forEach(future -> future.cancel(false));
+            throw e;
+        }
+
+        Chunk manifest = new Chunk(lookup, source);
+        Map<String, Float> scores = new HashMap<>(manifest.scores);
+        int length = manifest.length;
+        for (Future<Chunk> future : parsed) {
+            Chunk chunk;
+            try {
+                chunk = future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ElasticsearchException("[sort_by_doc] failed to parse a chunk of {}", e.getCause(), lookup);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElasticsearchException("[sort_by_doc] interrupted while parsing the chunks of {}", e, lookup);
+            }
+            if (lookup.getEncoding() == ScoreEncoding.RANK) {
+                // ranks are positions within the chunk
+                for (Map.Entry<String, Float> entry : chunk.scores.entrySet()) {
+                    scores.put(entry.getKey(), entry.getValue() + length);
+                }
+            } else {
+                scores.putAll(chunk.scores);
+            }
+            length += chunk.length;
+        }
+        return scores;
+    }
+
+    private GetResponse checkChunk(ScoreLookup lookup, MultiGetItemResponse item) {
+        if (item.isFailed()) {
+            throw new ElasticsearchException("[sort_by_doc] failed to fetch chunk [{}] of {}", item.getFailure().getFailure(),
+                    item.getId(), lookup);
+        }
+        GetResponse chunk = item.getResponse();
+        if (!chunk.isExists()) {
+            throw new ResourceNotFoundException("[sort_by_doc] chunk [{}] of {} not found", chunk.getId(), lookup);
+        }
+        if (chunk.getSourceInternal().length() > maxChunkSize) {
+            throw new IllegalArgumentException("[sort_by_doc] chunk [" + chunk.getId() + "] of " + lookup + " is larger than ["
+                    + MAX_CHUNK_SIZE_SETTING.getKey() + "=" + new ByteSizeValue(maxChunkSize) + "], split it into smaller chunks");
+        }
+        return chunk;
+    }
+
+    /**
+     * Carries the cached lists of a lookup document over to its new version by applying the delta
+     * that produced it, instead of parsing the new version from scratch on the next search.
+     * Ranks are shifted by removals and are not carried over. Only the tables of this node are patched,
+     * and their resolutions against segments are not: they are computed again for the new version.
+     */
+    public void patched(ScoreLookup lookup, LookupVersion version, LookupVersion newVersion,
+                        Map<String, Float> upserts, Collection<String> removals) {
+        for (ScoreEncoding encoding : ScoreEncoding.values()) {
+            if (encoding == ScoreEncoding.RANK) {
+                continue;
+            }
+            ScoreLookup encodedLookup = lookup.withEncoding(encoding);
+            LookupKey previousKey = new LookupKey(encodedLookup, version);
+            ScoreTable previous = cache.get(previousKey);
+            if (previous == null) {
+                continue;
+            }
+            LookupKey key = new LookupKey(encodedLookup, newVersion);
+            ScoreTable table = previous.patch(upserts, removals, key);
+            breaker.addEstimateBytesAndMaybeBreak(table.ramBytesUsed(), "<sort_by_doc lookup list " + key + ">");
+            cache.put(key, table);
+            cache.invalidate(previousKey);
+            log.trace("[patched] {} carried over to {}", previousKey, newVersion);
+        }
+    }
+
+    /**
+     * Resolves a table against the _id postings of a segment, once per segment
+     */
+    public LeafScores resolve(ScoreTable table, LeafReaderContext context) throws IOException {
+        return leaf(table, context, null, () -> table.resolve(context));
+    }
+
+    /**
+     * Joins a table with the ordinals of a keyword field of a segment, once per segment
+     */
+    public OrdinalScores join(ScoreTable table, LeafReaderContext context, String field) throws IOException {
+        return leaf(table, context, field, () -> table.join(context, field));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Accountable> T leaf(ScoreTable table, LeafReaderContext context, String field,
+                                           CheckedSupplier<T, IOException> loader) throws IOException {
+        IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+        if (cacheHelper == null || table.getFingerprint() == null) {
+            return loader.get();
+        }
+        IndexReader.CacheKey segment = cacheHelper.getKey();
+        if (segments.add(segment)) {
+            cacheHelper.addClosedListener(this::segmentClosed);
+        }
+        try {
+            return (T) leaves.computeIfAbsent(new LeafKey(table.getFingerprint(), segment, field), k -> loader.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ElasticsearchException("[sort_by_doc] failed to resolve {} in segment {}", e.getCause(), table, context.ord);
+        }
+    }
+
+    private void segmentClosed(IndexReader.CacheKey segment) {
+        segments.remove(segment);
+        List<LeafKey> keys = new ArrayList<>();
+        for (LeafKey key : leaves.keys()) {
+            if (key.segment == segment) {
+                keys.add(key);
+            }
+        }
+        keys.forEach(leaves::invalidate);
+    }
+
+    /**
+     * Counts a use of a list to search an index
+     */
+    public void recordUse(String index, ScoreLookup lookup) {
+        Map<ScoreLookup, AtomicLong> counts = usage.computeIfAbsent(index, i -> ConcurrentCollections.newConcurrentMap());
+        AtomicLong count = counts.get(lookup);
+        if (count == null) {
+            if (counts.size() >= MAX_COUNTED_LOOKUPS) {
+                return;
+            }
+            count = counts.computeIfAbsent(lookup, l -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return the lists most used to search an index, see {@link #decayUsage(String)}
+     */
+    public List<ScoreLookup> hotLookups(String index, int size) {
+        Map<ScoreLookup, AtomicLong> counts = usage.get(index);
+        if (counts == null || size <= 0) {
+            return Collections.emptyList();
+        }
+        List<Tuple<ScoreLookup, Long>> entries = new ArrayList<>();
+        for (Map.Entry<ScoreLookup, AtomicLong> entry : counts.entrySet()) {
+            entries.add(new Tuple<>(entry.getKey(), entry.getValue().get()));
+        }
+        entries.sort((a, b) -> Long.compare(b.v2(), a.v2()));
+
+        List<ScoreLookup> hot = new ArrayList<>();
+        for (int i = 0; i < Math.min(size, entries.size()); ++i) {
+            hot.add(entries.get(i).v1());
+        }
+        return hot;
+    }
+
+    /**
+     * Halves the counts of the lists used to search an index, so that lists which are not used anymore cool down
+     * and are eventually dropped
+     */
+    public void decayUsage(String index) {
+        Map<ScoreLookup, AtomicLong> counts = usage.get(index);
+        if (counts == null) {
+            return;
+        }
+        for (AtomicLong count : counts.values()) {
+            count.updateAndGet(c -> c / 2);
+        }
+        counts.values().removeIf(count -> count.get() == 0);
+    }
+
+    /**
+     * @return whether the table of a version of a lookup document is cached
+     */
+    public boolean isCached(ScoreLookup lookup, LookupVersion version) {
+        return cache.get(new LookupKey(lookup, version)) != null;
+    }
+
+    /**
+     * @return whether a table resolved against a segment, directly or through a join field, is cached
+     */
+    public boolean isCached(ScoreTable table, LeafReaderContext context, String field) {
+        IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+        return cacheHelper != null && table.getFingerprint() != null
+                && leaves.get(new LeafKey(table.getFingerprint(), cacheHelper.getKey(), field)) != null;
+    }
+
+    /**
+     * A table, identified by its fingerprint, resolved against a segment directly or through a join field
+     */
+    private static class LeafKey {
+        private final Object table;
+        private final IndexReader.CacheKey segment;
+        private final String field;
+
+        LeafKey(Object table, IndexReader.CacheKey segment, String field) {
+            this.table = table;
+            this.segment = segment;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LeafKey that = (LeafKey) o;
+            return segment == that.segment &&
+                    Objects.equals(field, that.field) &&
+                    table.equals(that.table);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, segment, field);
+        }
+    }
+
+    /**
+     * Part of a list parsed from a chunk document
+     */
+    private static class Chunk {
+        private final Map<String, Float> scores;
+        // number of items of the chunk, including those without a valid id
+        private final int length;
+
+        Chunk(ScoreLookup lookup, Map<String, Object> source) {
+            List<?> items = XContentGetScoreMap.extractList(source, lookup.getRootPath());
+            this.scores = lookup.extract(source);
+            this.length = items == null ? 0 : items.size();
+        }
+    }
+
+    /**
+     * Drops the lists read from a deleted index: seq_no and primary terms restart with a new index of the same name.
+     */
+    public void invalidateIndex(String index) {
+        usage.remove(index);
+        List<LookupKey> keys = new ArrayList<>();
+        for (LookupKey key : cache.keys()) {
+            if (key.getVersion().getIndex().equals(index)) {
+                keys.add(key);
+            }
+        }
+        keys.forEach(cache::invalidate);
+    }
+}
@@ -0,0 +1,107 @@
+package org.elasticsearch.search.query.sortbydoc.rest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupVersion;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreListPatch;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Applies a {@link ScoreListPatch} to a lookup document.
+ * <pre>
+ * POST /{index}/_sort_by_doc/{id}/_update?routing=...&amp;refresh=...
+ * </pre>
+ * The whole document is read and written back under optimistic concurrency control, a concurrent
+ * change fails the update with a version conflict. The lists cached on this node are then patched
+ * with the same delta rather than parsed again, in the background: the update does not wait for it,
+ * and a list that could not be patched is parsed again by the next search. Other nodes, and lists
+ * read with ranks, chunks or a join field, parse the new version on its first use.
+ */
+public class RestUpdateScoresAction extends BaseRestHandler {
+    private static final Logger log = LogManager.getLogger(RestUpdateScoresAction.class);
+
+    private final ThreadPool threadPool;
+    private final ScoreLookupService lookupService;
+
+    public RestUpdateScoresAction(Settings settings, RestController controller, ThreadPool threadPool,
+                                  ScoreLookupService lookupService) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.lookupService = lookupService;
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/_sort_by_doc/{id}/_update", this);
+    }
+
+    @Override
+    public String getName() {
+        return "sort_by_doc_update_scores_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        final String index = request.param("index");
+        final String id = request.param("id");
+        final String routing = request.param("routing");
+        final String refresh = request.param("refresh");
+        final ScoreListPatch patch;
+        try (XContentParser parser = request.contentParser()) {
+            patch = ScoreListPatch.fromXContent(parser);
+        }
+        final ScoreLookup lookup = new ScoreLookup(index, id, routing, patch.getRootPath(), patch.getIdField(), patch.getScoreField(),
+                ScoreEncoding.FLOAT32);
+
+        return channel -> {
+            ActionListener<IndexResponse> listener = new RestStatusToXContentListener<>(channel);
+            client.get(new GetRequest(index, id).routing(routing), ActionListener.wrap(getResponse -> {
+                if (!getResponse.isExists()) {
+                    throw new ResourceNotFoundException("[sort_by_doc] lookup document [{}/{}] not found", index, id);
+                }
+                Map<String, Object> source = getResponse.getSourceAsMap();
+                patch.apply(source);
+
+                IndexRequest indexRequest = new IndexRequest(index).id(id).routing(routing).source(source)
+                        .setIfSeqNo(getResponse.getSeqNo())
+                        .setIfPrimaryTerm(getResponse.getPrimaryTerm());
+                if (refresh != null) {
+                    indexRequest.setRefreshPolicy(refresh);
+                }
+                client.index(indexRequest, ActionListener.wrap(indexResponse -> {
+                    listener.onResponse(indexResponse);
+                    LookupVersion newVersion =
+                            new LookupVersion(indexResponse.getIndex(), true, indexResponse.getSeqNo(), indexResponse.getPrimaryTerm());
+                    threadPool.generic().execute(new AbstractRunnable() {
+                        @Override
+                        protected void doRun() {
+                            lookupService.patched(lookup, LookupVersion.of(getResponse), newVersion,
+                                    patch.getUpserts(), patch.getRemovals());
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            log.debug(() -> new ParameterizedMessage("[patched] failed to patch the cached lists of {}", lookup), e);
+                        }
+                    });
+                }, listener::onFailure));
+            }, listener::onFailure));
+        };
+    }
+}
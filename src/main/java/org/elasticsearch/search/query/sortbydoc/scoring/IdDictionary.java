@@ -0,0 +1,189 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Sorted ids, front coded in a single byte block: each id is written as the length of the prefix it shares
+ * with the previous id, followed by its remaining bytes. Every {@value #RESTART_INTERVAL} ids, an id is
+ * written whole and its offset in the block is kept, so that readers can skip ahead. Immutable.
+ */
+public final class IdDictionary implements Accountable {
+    static final int RESTART_INTERVAL = 16;
+    public static final IdDictionary EMPTY = new Builder(0).build();
+
+    private final byte[] block;
+    private final int[] restarts;
+    private final int size;
+
+    private IdDictionary(byte[] block, int[] restarts, int size) {
+        this.block = block;
+        this.restarts = restarts;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a reader over the ids, in order
+     */
+    public Reader reader() {
+        return new Reader();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(block) + RamUsageEstimator.sizeOf(restarts) + Integer.BYTES;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IdDictionary that = (IdDictionary) o;
+        // the encoding of a sequence of ids is unique
+        return size == that.size && Arrays.equals(block, that.block);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(block);
+    }
+
+    /**
+     * Reads ids in order. The returned {@link BytesRef} is reused, it is only valid until the next call.
+     */
+    public class Reader {
+        private final ByteArrayDataInput in = new ByteArrayDataInput(block);
+        private final BytesRefBuilder current = new BytesRefBuilder();
+        // index of the next id
+        private int index;
+        // reads the ids written whole at restart points, without moving the reader
+        private ByteArrayDataInput restart;
+
+        private Reader() {
+        }
+
+        /**
+         * @return the index of the last id read
+         */
+        public int index() {
+            return index - 1;
+        }
+
+        /**
+         * @return the next id, null once all ids were read
+         */
+        public BytesRef next() {
+            if (index == size) {
+                return null;
+            }
+            int prefix = in.readVInt();
+            int suffix = in.readVInt();
+            current.setLength(prefix);
+            current.grow(prefix + suffix);
+            in.readBytes(current.bytes(), prefix, suffix);
+            current.setLength(prefix + suffix);
+            index++;
+            return current.get();
+        }
+
+        /**
+         * Moves forward to the first id greater than or equal to the target, jumping to the last restart
+         * point before it rather than reading every id in between.
+         *
+         * @return that id, null if there is none
+         */
+        public BytesRef seekCeil(BytesRef target) {
+            int low = (index + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+            int high = restarts.length - 1;
+            int jump = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (restartId(mid).compareTo(target) <= 0) {
+                    jump = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (jump >= 0) {
+                in.setPosition(restarts[jump]);
+                index = jump * RESTART_INTERVAL;
+            }
+            for (BytesRef id = next(); id != null; id = next()) {
+                if (id.compareTo(target) >= 0) {
+                    return id;
+                }
+            }
+            return null;
+        }
+
+        private BytesRef restartId(int restartPoint) {
+            if (restart == null) {
+                restart = new ByteArrayDataInput(block);
+            }
+            restart.setPosition(restarts[restartPoint]);
+            // no shared prefix
+            restart.readVInt();
+            int length = restart.readVInt();
+            return new BytesRef(block, restart.getPosition(), length);
+        }
+    }
+
+    /**
+     * Builds a dictionary from ids added in increasing order
+     */
+    public static class Builder {
+        private final GrowableByteArrayDataOutput out;
+        private final BytesRefBuilder previous = new BytesRefBuilder();
+        private int[] restarts = new int[1];
+        private int size;
+
+        /**
+         * @param expectedBytes expected size of the block, it grows as needed
+         */
+        public Builder(int expectedBytes) {
+            this.out = new GrowableByteArrayDataOutput(Math.max(expectedBytes, 16));
+        }
+
+        public Builder add(BytesRef id) {
+            assert size == 0 || previous.get().compareTo(id) < 0 : "ids must be added in increasing order";
+            int prefix = 0;
+            if (size % RESTART_INTERVAL == 0) {
+                restarts = ArrayUtil.grow(restarts, size / RESTART_INTERVAL + 1);
+                restarts[size / RESTART_INTERVAL] = out.getPosition();
+            } else {
+                prefix = StringHelper.bytesDifference(previous.get(), id);
+            }
+            try {
+                out.writeVInt(prefix);
+                out.writeVInt(id.length - prefix);
+                out.writeBytes(id.bytes, id.offset + prefix, id.length - prefix);
+            } catch (IOException e) {
+                // writes to a growable byte array
+                throw new UncheckedIOException(e);
+            }
+            previous.copyBytes(id);
+            size++;
+            return this;
+        }
+
+        public IdDictionary build() {
+            int restartCount = (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+            return new IdDictionary(Arrays.copyOf(out.getBytes(), out.getPosition()), Arrays.copyOf(restarts, restartCount), size);
+        }
+    }
+}
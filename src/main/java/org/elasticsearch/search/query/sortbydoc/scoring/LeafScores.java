@@ -0,0 +1,112 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * Raw scores of a lookup list resolved against one segment: doc ids (sorted) and
+ * the scores of these docs, encoded as in the lookup table. Immutable, read through a {@link Cursor}.
+ */
+public class LeafScores implements Accountable {
+    public static final LeafScores EMPTY = new LeafScores(new int[0], ScoreEncoding.FLOAT32.encode(new float[0]));
+
+    private final int[] docs;
+    private final ScoreColumn scores;
+    // bounds of the valid scores, +/-Infinity if there is none
+    private final float minScore;
+    private final float maxScore;
+
+    LeafScores(int[] docs, ScoreColumn scores) {
+        this.docs = docs;
+        this.scores = scores;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < scores.size(); ++i) {
+            float score = scores.get(i);
+            if (score != ScoreColumn.INVALID) {
+                min = Math.min(min, score);
+                max = Math.max(max, score);
+            }
+        }
+        this.minScore = min;
+        this.maxScore = max;
+    }
+
+    public int size() {
+        return docs.length;
+    }
+
+    public int doc(int index) {
+        return docs[index];
+    }
+
+    public float score(int index) {
+        return scores.get(index);
+    }
+
+    /**
+     * @return the lowest valid score, {@link Float#POSITIVE_INFINITY} if there is none
+     */
+    public float minScore() {
+        return minScore;
+    }
+
+    /**
+     * @return the highest valid score, {@link Float#NEGATIVE_INFINITY} if there is none
+     */
+    public float maxScore() {
+        return maxScore;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(docs) + scores.ramBytesUsed() + Float.BYTES * 2;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Forward-only reader, targets must be given in increasing doc order.
+     */
+    public class Cursor {
+        private int next = 0;
+        private int current = -1;
+
+        public boolean advanceExact(int doc) {
+            int index = Arrays.binarySearch(docs, next, docs.length, doc);
+            if (index >= 0) {
+                current = index;
+                next = index;
+                return true;
+            }
+            current = -1;
+            next = -1 - index;
+            return false;
+        }
+
+        /**
+         * Positions on the first doc at or after target
+         *
+         * @return that doc, {@link DocIdSetIterator#NO_MORE_DOCS} if there is none
+         */
+        public int advance(int target) {
+            if (advanceExact(target)) {
+                return target;
+            }
+            if (next == docs.length) {
+                return DocIdSetIterator.NO_MORE_DOCS;
+            }
+            current = next;
+            return docs[current];
+        }
+
+        public float score() {
+            return scores.get(current);
+        }
+    }
+}
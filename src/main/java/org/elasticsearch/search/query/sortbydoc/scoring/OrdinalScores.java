@@ -0,0 +1,88 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.util.Arrays;
+
+/**
+ * Raw scores of a lookup list joined with the ordinals of a keyword field of one segment:
+ * the score of a document is read through its ordinals, without any postings lookup.
+ * Keys of the list that are not in the segment are dropped.
+ */
+public class OrdinalScores implements Accountable {
+    public static final OrdinalScores EMPTY = new OrdinalScores(new long[0], ScoreEncoding.FLOAT32.encode(new float[0]), 0);
+
+    // ordinals (sorted) of the listed keys found in the segment and their scores, encoded as in the lookup table
+    private final long[] ords;
+    private final ScoreColumn scores;
+    // 1 + index in scores by ordinal, 0 for keys that are not listed; only when a good share of the keys of the segment are listed
+    private final PackedInts.Mutable dense;
+    // bounds of the valid scores, +/-Infinity if there is none
+    private final float minScore;
+    private final float maxScore;
+
+    OrdinalScores(long[] ords, ScoreColumn scores, long valueCount) {
+        this.ords = ords;
+        this.scores = scores;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < scores.size(); ++i) {
+            float score = scores.get(i);
+            if (score != ScoreColumn.INVALID) {
+                min = Math.min(min, score);
+                max = Math.max(max, score);
+            }
+        }
+        this.minScore = min;
+        this.maxScore = max;
+        if (ords.length > 0 && valueCount <= 8L * ords.length) {
+            dense = PackedInts.getMutable((int) valueCount, PackedInts.bitsRequired(ords.length), PackedInts.COMPACT);
+            for (int i = 0; i < ords.length; ++i) {
+                dense.set((int) ords[i], i + 1);
+            }
+        } else {
+            dense = null;
+        }
+    }
+
+    public int size() {
+        return ords.length;
+    }
+
+    public float score(int index) {
+        return scores.get(index);
+    }
+
+    /**
+     * @return the lowest valid score, {@link Float#POSITIVE_INFINITY} if there is none
+     */
+    public float minScore() {
+        return minScore;
+    }
+
+    /**
+     * @return the highest valid score, {@link Float#NEGATIVE_INFINITY} if there is none
+     */
+    public float maxScore() {
+        return maxScore;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(ords) + scores.ramBytesUsed() + (dense == null ? 0 : dense.ramBytesUsed()) + Float.BYTES * 2;
+    }
+
+    /**
+     * @return the score of the key with the given ordinal, NaN if the key is not listed
+     */
+    public float scoreOf(long ord) {
+        if (dense != null) {
+            int index = (int) dense.get((int) ord) - 1;
+            return index >= 0 ? scores.get(index) : Float.NaN;
+        }
+        int index = Arrays.binarySearch(ords, ord);
+        return index >= 0 ? scores.get(index) : Float.NaN;
+    }
+}
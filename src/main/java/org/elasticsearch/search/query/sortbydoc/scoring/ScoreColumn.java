@@ -0,0 +1,170 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.lucene.document.HalfFloatPoint;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Scores of a lookup list, encoded with a {@link ScoreEncoding}.
+ */
+public abstract class ScoreColumn implements Accountable {
+    /**
+     * Score given to items whose score could not be read
+     */
+    public static final float INVALID = -Float.MAX_VALUE;
+
+    public abstract int size();
+
+    public abstract float get(int index);
+
+    /**
+     * @return a column of the same encoding holding the scores at the given indices, in that order
+     */
+    public abstract ScoreColumn select(int[] indices);
+
+    public float[] decode() {
+        float[] values = new float[size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = get(i);
+        }
+        return values;
+    }
+
+    static class Float32 extends ScoreColumn {
+        private final float[] values;
+
+        Float32(float[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public float get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public ScoreColumn select(int[] indices) {
+            float[] selected = new float[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                selected[i] = values[indices[i]];
+            }
+            return new Float32(selected);
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.sizeOf(values);
+        }
+    }
+
+    static class Float16 extends ScoreColumn {
+        // -Infinity, out of the range of the encoded scores
+        static final short INVALID_CODE = HalfFloatPoint.halfFloatToSortableShort(Float.NEGATIVE_INFINITY);
+
+        private final short[] values;
+
+        Float16(short[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public float get(int index) {
+            return values[index] == INVALID_CODE ? INVALID : HalfFloatPoint.sortableShortToHalfFloat(values[index]);
+        }
+
+        @Override
+        public ScoreColumn select(int[] indices) {
+            short[] selected = new short[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                selected[i] = values[indices[i]];
+            }
+            return new Float16(selected);
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.sizeOf(values);
+        }
+    }
+
+    static class Quantized extends ScoreColumn {
+        // 0 for invalid scores, min + (code - 1) * step otherwise
+        private final byte[] codes;
+        private final float min;
+        private final float step;
+
+        Quantized(byte[] codes, float min, float step) {
+            this.codes = codes;
+            this.min = min;
+            this.step = step;
+        }
+
+        @Override
+        public int size() {
+            return codes.length;
+        }
+
+        @Override
+        public float get(int index) {
+            int code = codes[index] & 0xFF;
+            return code == 0 ? INVALID : min + (code - 1) * step;
+        }
+
+        @Override
+        public ScoreColumn select(int[] indices) {
+            byte[] selected = new byte[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                selected[i] = codes[indices[i]];
+            }
+            return new Quantized(selected, min, step);
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.sizeOf(codes) + Float.BYTES * 2;
+        }
+    }
+
+    static class Rank extends ScoreColumn {
+        private final PackedInts.Mutable ranks;
+
+        Rank(PackedInts.Mutable ranks) {
+            this.ranks = ranks;
+        }
+
+        @Override
+        public int size() {
+            return ranks.size();
+        }
+
+        @Override
+        public float get(int index) {
+            return ranks.get(index);
+        }
+
+        @Override
+        public ScoreColumn select(int[] indices) {
+            PackedInts.Mutable selected = PackedInts.getMutable(indices.length, ranks.getBitsPerValue(), PackedInts.COMPACT);
+            for (int i = 0; i < indices.length; ++i) {
+                selected.set(i, ranks.get(indices[i]));
+            }
+            return new Rank(selected);
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return ranks.ramBytesUsed();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.lucene.document.HalfFloatPoint;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How the scores of a lookup list are held in memory.
+ */
+public enum ScoreEncoding {
+    /**
+     * 4 bytes per score, as read from the lookup document
+     */
+    FLOAT32 {
+        @Override
+        public ScoreColumn encode(float[] values) {
+            return new ScoreColumn.Float32(values);
+        }
+    },
+    /**
+     * 2 bytes per score, 11 bits of precision, lists with a score beyond +/-65504 are rejected
+     */
+    FLOAT16 {
+        @Override
+        public ScoreColumn encode(float[] values) {
+            short[] encoded = new short[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] == ScoreColumn.INVALID) {
+                    encoded[i] = ScoreColumn.Float16.INVALID_CODE;
+                } else if (Math.abs(values[i]) > MAX_HALF_FLOAT) {
+                    throw new IllegalArgumentException("[sort_by_doc] score [" + values[i] + "] cannot be encoded as ["
+                            + getName() + "], scores should be within +/-" + MAX_HALF_FLOAT + ", use [" + FLOAT32.getName() + "]");
+                } else {
+                    encoded[i] = HalfFloatPoint.halfFloatToSortableShort(values[i]);
+                }
+            }
+            return new ScoreColumn.Float16(encoded);
+        }
+    },
+    /**
+     * 1 byte per score, 254 steps between the lowest and the highest score of the list
+     */
+    UINT8_QUANTIZED {
+        @Override
+        public ScoreColumn encode(float[] values) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (float value : values) {
+                if (value != ScoreColumn.INVALID) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            float step = max > min ? (max - min) / 254 : 0;
+            byte[] encoded = new byte[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] == ScoreColumn.INVALID) {
+                    encoded[i] = 0;
+                } else {
+                    encoded[i] = (byte) (1 + (step == 0 ? 0 : Math.round((values[i] - min) / step)));
+                }
+            }
+            return new ScoreColumn.Quantized(encoded, min, step);
+        }
+    },
+    /**
+     * Position of the item in the list (1 for the first one), no score field is read.
+     * Positions are bit packed.
+     */
+    RANK {
+        @Override
+        public ScoreColumn encode(float[] values) {
+            int maxRank = 0;
+            for (float value : values) {
+                maxRank = Math.max(maxRank, (int) value);
+            }
+            PackedInts.Mutable ranks = PackedInts.getMutable(values.length, PackedInts.bitsRequired(maxRank), PackedInts.COMPACT);
+            for (int i = 0; i < values.length; ++i) {
+                ranks.set(i, (long) values[i]);
+            }
+            return new ScoreColumn.Rank(ranks);
+        }
+    };
+
+    private static final float MAX_HALF_FLOAT = 65504f;
+
+    /**
+     * Encodes scores, the returned column holds them in the same order.
+     */
+    public abstract ScoreColumn encode(float[] values);
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    public static ScoreEncoding fromString(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("[sort_by_doc] score_encoding should be one of " + Arrays.toString(names()));
+        }
+    }
+
+    private static String[] names() {
+        return Arrays.stream(values()).map(ScoreEncoding::getName).toArray(String[]::new);
+    }
+}
@@ -0,0 +1,299 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.IntroSorter;
+import org.elasticsearch.common.lucene.BytesRefs;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.Uid;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Raw scores of a lookup list, keyed by encoded _id and sorted by id so that
+ * they can be resolved against a segment in a single pass over its terms dictionary.
+ * Ids are held in a front coded {@link IdDictionary}, scores with the {@link ScoreEncoding} of the query.
+ * Tables are immutable and shared by all the shards of a node.
+ * <p>
+ * A table read from a known version of a lookup document carries a fingerprint of that version:
+ * tables are then compared through their fingerprints rather than their content.
+ */
+public class ScoreTable implements Accountable {
+    private static final Logger log = LogManager.getLogger(ScoreTable.class);
+    public static final ScoreTable EMPTY = new ScoreTable(IdDictionary.EMPTY, ScoreEncoding.FLOAT32.encode(new float[0]), ScoreEncoding.FLOAT32, null);
+
+    private final IdDictionary ids;
+    private final ScoreColumn scores;
+    private final ScoreEncoding encoding;
+    private final Object fingerprint;
+    private final int hashCode;
+
+    private ScoreTable(IdDictionary ids, ScoreColumn scores, ScoreEncoding encoding, Object fingerprint) {
+        this.ids = ids;
+        this.scores = scores;
+        this.encoding = encoding;
+        this.fingerprint = fingerprint;
+        this.hashCode = fingerprint != null ? fingerprint.hashCode() : 31 * ids.hashCode() + encoding.hashCode();
+    }
+
+    public static ScoreTable build(Map<String, Float> scores, boolean legacyIds, ScoreEncoding encoding) {
+        return build(scores, legacyIds, encoding, null);
+    }
+
+    /**
+     * @param legacyIds whether ids are indexed as is (5.x indices, keyword join fields) rather than {@link Uid} encoded
+     * @param fingerprint identifies the content of the table, null to compare tables by content
+     */
+    public static ScoreTable build(Map<String, Float> scores, boolean legacyIds, ScoreEncoding encoding, Object fingerprint) {
+        BytesRef[] ids = new BytesRef[scores.size()];
+        float[] values = new float[ids.length];
+        int i = 0;
+        for (Map.Entry<String, Float> entry : scores.entrySet()) {
+            ids[i] = legacyIds ? BytesRefs.toBytesRef(entry.getKey()) : Uid.encodeId(entry.getKey());
+            values[i++] = entry.getValue();
+        }
+        // sorts ids and their scores together, without boxing
+        new IntroSorter() {
+            private BytesRef pivot;
+
+            @Override
+            protected void swap(int a, int b) {
+                BytesRef id = ids[a];
+                ids[a] = ids[b];
+                ids[b] = id;
+                float value = values[a];
+                values[a] = values[b];
+                values[b] = value;
+            }
+
+            @Override
+            protected int compare(int a, int b) {
+                return ids[a].compareTo(ids[b]);
+            }
+
+            @Override
+            protected void setPivot(int i) {
+                pivot = ids[i];
+            }
+
+            @Override
+            protected int comparePivot(int j) {
+                return pivot.compareTo(ids[j]);
+            }
+        }.sort(0, ids.length);
+
+        IdDictionary.Builder dictionary = new IdDictionary.Builder(ids.length * 4);
+        for (BytesRef id : ids) {
+            dictionary.add(id);
+        }
+        return new ScoreTable(dictionary.build(), encoding.encode(values), encoding, fingerprint);
+    }
+
+    public ScoreEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return what identifies the content of this table, null if tables are compared by content
+     */
+    public Object getFingerprint() {
+        return fingerprint;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public boolean isEmpty() {
+        return ids.size() == 0;
+    }
+
+    /**
+     * Applies a delta to this table without re-reading the whole list: upserts are merged
+     * in id order, then removals are dropped. This table is left untouched.
+     * Quantized scores keep their precision as long as upserts stay within the current range.
+     *
+     * @param fingerprint identifies the content of the patched table
+     */
+    public ScoreTable patch(Map<String, Float> upserts, Collection<String> removals, Object fingerprint) {
+        ScoreTable delta = build(upserts, false, ScoreEncoding.FLOAT32);
+        BytesRef[] removed = new BytesRef[removals.size()];
+        int r = 0;
+        for (String id : removals) {
+            removed[r++] = Uid.encodeId(id);
+        }
+        Arrays.sort(removed);
+
+        IdDictionary.Builder newIds = new IdDictionary.Builder((int) Math.min(Integer.MAX_VALUE, ids.ramBytesUsed()));
+        float[] newScores = new float[ids.size() + delta.size()];
+        IdDictionary.Reader current = ids.reader();
+        IdDictionary.Reader changes = delta.ids.reader();
+        BytesRef currentId = current.next();
+        BytesRef changedId = changes.next();
+        int i = 0, j = 0, n = 0;
+        while (currentId != null || changedId != null) {
+            int cmp = currentId == null ? 1 : changedId == null ? -1 : currentId.compareTo(changedId);
+            BytesRef id;
+            float score;
+            if (cmp < 0) {
+                id = currentId;
+                score = scores.get(i);
+            } else {
+                id = changedId;
+                score = delta.scores.get(j);
+            }
+            if (Arrays.binarySearch(removed, id) < 0) {
+                newIds.add(id);
+                newScores[n++] = score;
+            }
+            if (cmp <= 0) {
+                currentId = current.next();
+                i++;
+            }
+            if (cmp >= 0) {
+                changedId = changes.next();
+                j++;
+            }
+        }
+        return new ScoreTable(newIds.build(), encoding.encode(Arrays.copyOf(newScores, n)), encoding, fingerprint);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return scores.ramBytesUsed() + ids.ramBytesUsed();
+    }
+
+    /**
+     * Resolves the ids of this table against the _id postings of a segment.
+     * Deleted documents are kept: they are never visited by scorers or collectors.
+     */
+    public LeafScores resolve(LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        Terms terms = reader.terms(IdFieldMapper.NAME);
+        if (terms == null || isEmpty()) {
+            return LeafScores.EMPTY;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        // doc in the upper bits, entry in the lower ones so that a plain sort orders entries by doc
+        long[] entries = new long[16];
+        int count = 0;
+        IdDictionary.Reader idReader = ids.reader();
+        int i = 0;
+        for (BytesRef id = idReader.next(); id != null; id = idReader.next(), ++i) {
+            if (!termsEnum.seekExact(id)) {
+                continue;
+            }
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                entries = ArrayUtil.grow(entries, count + 1);
+                entries[count++] = ((long) doc << 32) | i;
+            }
+        }
+        Arrays.sort(entries, 0, count);
+
+        int[] docs = new int[count];
+        int[] entryIndices = new int[count];
+        for (i = 0; i < count; ++i) {
+            docs[i] = (int) (entries[i] >>> 32);
+            entryIndices[i] = (int) entries[i];
+        }
+        log.trace("[resolve] {} of {} ids found in segment {}", count, size(), context.ord);
+        return new LeafScores(docs, scores.select(entryIndices));
+    }
+
+    /**
+     * @return the docs of a segment whose field holds one of the ids of this table, as encoded in the table
+     */
+    public DocIdSet members(LeafReaderContext context, String field) throws IOException {
+        LeafReader reader = context.reader();
+        Terms terms = reader.terms(field);
+        if (terms == null || isEmpty()) {
+            return DocIdSet.EMPTY;
+        }
+        DocIdSetBuilder builder = new DocIdSetBuilder(reader.maxDoc(), terms);
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        IdDictionary.Reader idReader = ids.reader();
+        for (BytesRef id = idReader.next(); id != null; id = idReader.next()) {
+            if (termsEnum.seekExact(id)) {
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                builder.add(postings);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Joins the ids of this table, as raw keys, with the terms of a keyword field of a segment. Both are sorted:
+     * each side seeks forward whenever it lags behind the other, so that a small segment does not read every id.
+     */
+    public OrdinalScores join(LeafReaderContext context, String field) throws IOException {
+        SortedSetDocValues keys = DocValues.getSortedSet(context.reader(), field);
+        if (keys.getValueCount() == 0 || isEmpty()) {
+            return OrdinalScores.EMPTY;
+        }
+        TermsEnum termsEnum = keys.termsEnum();
+        long[] ords = new long[16];
+        int[] entryIndices = new int[16];
+        int count = 0;
+        BytesRef term = termsEnum.next();
+        IdDictionary.Reader reader = ids.reader();
+        BytesRef id = reader.next();
+        while (term != null && id != null) {
+            int cmp = id.compareTo(term);
+            if (cmp < 0) {
+                // not in the segment
+                id = reader.seekCeil(term);
+            } else if (cmp == 0) {
+                ords = ArrayUtil.grow(ords, count + 1);
+                entryIndices = ArrayUtil.grow(entryIndices, count + 1);
+                ords[count] = termsEnum.ord();
+                entryIndices[count++] = reader.index();
+                id = reader.next();
+                term = termsEnum.next();
+            } else if (termsEnum.seekCeil(id) == TermsEnum.SeekStatus.END) {
+                term = null;
+            } else {
+                term = termsEnum.term();
+            }
+        }
+        log.trace("[join] {} of {} keys found in field [{}] of segment {}", count, size(), field, context.ord);
+        return new OrdinalScores(Arrays.copyOf(ords, count), scores.select(Arrays.copyOf(entryIndices, count)), keys.getValueCount());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ScoreTable that = (ScoreTable) o;
+        if (fingerprint != null && that.fingerprint != null) {
+            return fingerprint.equals(that.fingerprint);
+        }
+        return hashCode == that.hashCode &&
+                encoding == that.encoding &&
+                ids.equals(that.ids) &&
+                Arrays.equals(scores.decode(), that.scores.decode());
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
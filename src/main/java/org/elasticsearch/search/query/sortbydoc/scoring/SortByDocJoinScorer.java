@@ -0,0 +1,94 @@
+package org.elasticsearch.search.query.sortbydoc.scoring;
+
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.search.query.sortbydoc.SortByDocQuery;
+
+import java.io.IOException;
+
+/**
+ * Scores the documents of the sub query through the ordinals of their join field:
+ * a document matches if one of its keys is listed, and gets the best score of its listed keys.
+ */
+public class SortByDocJoinScorer extends Scorer {
+    private final SortByDocQuery query;
+    private final DocIdSetIterator iterator;
+    private final SortedSetDocValues keys;
+    private final OrdinalScores scores;
+    private final TwoPhaseIterator twoPhase;
+    private final float max;
+    private float score;
+
+    SortByDocJoinScorer(SortByDocQuery query, OrdinalScores scores, SortedSetDocValues keys, DocIdSetIterator iterator, Weight weight) {
+        super(weight);
+        this.query = query;
+        this.scores = scores;
+        this.keys = keys;
+        this.iterator = iterator;
+        this.max = query.maxQueryScore(scores.minScore(), scores.maxScore());
+        this.twoPhase = new TwoPhaseIterator(iterator) {
+            @Override
+            public boolean matches() throws IOException {
+                return readScore(iterator.docID());
+            }
+
+            @Override
+            public float matchCost() {
+                // one ordinal read, plus a binary search when the scores are sparse
+                return 10;
+            }
+        };
+    }
+
+    /**
+     * Reads the score of a document of the sub query, docs must be given in increasing order
+     *
+     * @return whether the document has a listed key
+     */
+    boolean readScore(int doc) throws IOException {
+        if (!keys.advanceExact(doc)) {
+            return false;
+        }
+        boolean found = false;
+        for (long ord = keys.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = keys.nextOrd()) {
+            float listed = scores.scoreOf(ord);
+            if (Float.isNaN(listed) || !query.accepts(listed)) {
+                continue;
+            }
+            float candidate = query.toQueryScore(listed);
+            if (!found || candidate > score) {
+                score = candidate;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+        return TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+    }
+
+    @Override
+    public TwoPhaseIterator twoPhaseIterator() {
+        return twoPhase;
+    }
+
+    @Override
+    public float getMaxScore(int i) {
+        return max;
+    }
+
+    @Override
+    public int docID() {
+        return iterator.docID();
+    }
+
+    @Override
+    public float score() {
+        return score;
+    }
+}
@@ -5,10 +5,9 @@ import org.apache.logging.log4j.Logger;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
+import org.elasticsearch.search.query.sortbydoc.SortByDocQuery;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
 
 /**
  * samuel
@@ -16,17 +15,41 @@ import java.util.Map;
  */
 public class SortByDocScorer extends Scorer {
     private static final Logger log = LogManager.getLogger(SortByDocScorer.class);
+    private final SortByDocQuery query;
     private final DocIdSetIterator iterator;
-    private Map<Integer, Float> scores;
-    private float max;
+    private final LeafScores.Cursor scores;
+    private final int size;
+    private final float max;
+    private int docId = -1;
 
-    SortByDocScorer(Map<Integer, Float> scores, DocIdSetIterator iterator, Weight weight) {
+    SortByDocScorer(SortByDocQuery query, LeafScores leafScores, DocIdSetIterator iterator, Weight weight) {
         super(weight);
-        this.scores = scores;
+        this.query = query;
+        this.scores = leafScores.cursor();
         this.iterator = iterator;
-        if (!scores.isEmpty()) {
-            max = Collections.max(scores.values());
+        this.size = leafScores.size();
+        this.max = query.maxQueryScore(leafScores.minScore(), leafScores.maxScore());
+    }
+
+    /**
+     * Leapfrogs between the sub query and the docs of the lookup list, from the given doc of the sub query
+     */
+    private int doNext(int doc) throws IOException {
+        while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+            int listed = scores.advance(doc);
+            if (listed == DocIdSetIterator.NO_MORE_DOCS) {
+                break;
+            }
+            if (listed != doc) {
+                doc = iterator.advance(listed);
+            } else if (query.accepts(scores.score())) {
+                return doc;
+            } else {
+                log.trace("[doNext] Skipping document {}, score out of range", doc);
+                doc = iterator.nextDoc();
+            }
         }
+        return DocIdSetIterator.NO_MORE_DOCS;
     }
 
     @Override
@@ -35,40 +58,22 @@ public class SortByDocScorer extends Scorer {
         return new DocIdSetIterator() {
             @Override
             public int docID() {
-                return iterator.docID();
+                return docId;
             }
 
             @Override
             public int nextDoc() throws IOException {
-                // retrieve the next document indluded in the scores
-                int docId;
-                while ((docId = iterator.nextDoc()) != NO_MORE_DOCS) {
-                    if (scores.containsKey(docId)) {
-                        return docId;
-                    } else {
-                        log.trace("[nextdoc] Skipping document {}", docId);
-                    }
-                }
-                return NO_MORE_DOCS;
+                return docId = doNext(iterator.nextDoc());
             }
 
             @Override
             public int advance(int target) throws IOException {
-                int docId = iterator.advance(target);
-                if (docId != NO_MORE_DOCS) {
-                    // We advanced, but if the document was not in our score set (for whatever reason)
-                    // then we go to the next valid document by calling nextDoc
-                    if (scores.containsKey(docId))
-                        return docId;
-                    log.trace("[advance] Skipping document {}", docId);
-                    return nextDoc();
-                }
-                return NO_MORE_DOCS;
+                return docId = doNext(iterator.advance(target));
             }
 
             @Override
             public long cost() {
-                return iterator.cost();
+                return Math.min(iterator.cost(), size);
             }
         };
     }
@@ -80,12 +85,12 @@ public class SortByDocScorer extends Scorer {
 
     @Override
     public int docID() {
-        return iterator.docID();
+        return docId;
     }
 
     @Override
     public float score() {
-        Float value = scores.get(docID());
-        return value == null ? 0 : value;
+        // the iterator only stops on documents found in the scores
+        return query.toQueryScore(scores.score());
     }
 }
@@ -2,17 +2,13 @@ package org.elasticsearch.search.query.sortbydoc.scoring;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
-import org.apache.lucene.util.BytesRef;
-import org.elasticsearch.common.lucene.uid.VersionsAndSeqNoResolver;
-import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.search.query.sortbydoc.SortByDocQuery;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -21,19 +17,33 @@ import java.util.Set;
  */
 public class SortByDocWeight extends Weight {
     private static final Logger log = LogManager.getLogger(SortByDocWeight.class);
-    private Weight weight;
-    private Map<BytesRef, Float> scores;
+    private final SortByDocQuery query;
+    private final Weight weight;
+    private final ScoreTable scores;
 
-    public SortByDocWeight(Query query, Map<BytesRef, Float> scores, Weight weight) {
+    public SortByDocWeight(SortByDocQuery query, ScoreTable scores, Weight weight) {
         super(query);
+        this.query = query;
         this.scores = scores;
         this.weight = weight;
     }
 
     @Override
     public Explanation explain(LeafReaderContext context, int doc) throws IOException {
-        Float score = getScores(context).get(doc);
-        return Explanation.match(score, "sort_by_doc");
+        if (query.getJoinField() != null) {
+            OrdinalScores ordinalScores = query.getLookupService().join(scores, context, query.getJoinField());
+            SortByDocJoinScorer scorer = new SortByDocJoinScorer(query, ordinalScores,
+                    DocValues.getSortedSet(context.reader(), query.getJoinField()), DocIdSetIterator.empty(), this);
+            if (!scorer.readScore(doc)) {
+                return Explanation.noMatch("sort_by_doc: no key of the document in the lookup list");
+            }
+            return Explanation.match(scorer.score(), "sort_by_doc, best lookup score of the keys of the document");
+        }
+        LeafScores.Cursor cursor = query.getLookupService().resolve(scores, context).cursor();
+        if (!cursor.advanceExact(doc) || !query.accepts(cursor.score())) {
+            return Explanation.noMatch("sort_by_doc: document not in the lookup list");
+        }
+        return Explanation.match(query.toQueryScore(cursor.score()), "sort_by_doc, lookup score: " + cursor.score());
     }
 
     @Override
@@ -47,29 +57,25 @@ public class SortByDocWeight extends Weight {
         if (scorer == null) {
             return null;
         }
-        return new SortByDocScorer(getScores(context), scorer.iterator(), this);
-    }
-
-    private Map<Integer, Float> getScores(LeafReaderContext context) throws IOException {
-        log.trace("[getScores] Content of the score table (size: {}) {}", this.scores.size(), context.reader().terms(IdFieldMapper.NAME).getMin());
-        Map<Integer, Float> scores = new HashMap<>();
-        LeafReader reader = context.reader();
-        for (Map.Entry<BytesRef, Float> score : this.scores.entrySet()) {
-            VersionsAndSeqNoResolver.DocIdAndVersion docIdAndVersion = VersionsAndSeqNoResolver.loadDocIdAndVersion(reader, new Term(IdFieldMapper.NAME, score.getKey()), false);
-            if (docIdAndVersion == null) {
-                log.trace("[getScores] Could not find postings {}", score.getKey());
-                continue;
+        if (query.getJoinField() != null) {
+            OrdinalScores ordinalScores = query.getLookupService().join(scores, context, query.getJoinField());
+            if (ordinalScores.size() == 0) {
+                return null;
             }
-            scores.put(docIdAndVersion.docId, score.getValue());
+            return new SortByDocJoinScorer(query, ordinalScores, DocValues.getSortedSet(context.reader(), query.getJoinField()),
+                    scorer.iterator(), this);
         }
-
-        log.trace("[getScores] Content of the internal score table (size: {}) {}",scores.size(), scores);
-
-        return scores;
+        LeafScores leafScores = query.getLookupService().resolve(scores, context);
+        log.trace("[scorer] {} of {} lookup ids resolved in segment {}", leafScores.size(), scores.size(), context.ord);
+        return new SortByDocScorer(query, leafScores, scorer.iterator(), this);
     }
 
     @Override
     public boolean isCacheable(LeafReaderContext ctx) {
-        return false;
+        // the matching docs only depend on the sub query, on the fingerprinted lookup list and on the join field
+        if (query.getJoinField() != null && !DocValues.isCacheable(ctx, query.getJoinField())) {
+            return false;
+        }
+        return weight.isCacheable(ctx);
     }
 }
@@ -0,0 +1,158 @@
+package org.elasticsearch.search.query.sortbydoc.script;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.script.AggregationScript;
+import org.elasticsearch.script.ScoreScript;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.search.lookup.SearchLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.scoring.LeafScores;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Script engine exposing lookup scores to aggregations and score scripts.
+ * <pre>
+ * "avg": {
+ *   "script": {
+ *     "lang": "sort_by_doc",
+ *     "source": "score",
+ *     "params": { "index": "my_index", "doc_id": "my_id", "root": "path", "id": "field_for_ids", "score": "field_for_score" }
+ *   }
+ * }
+ * </pre>
+ * The lookup document is fetched once per shard and resolved once per segment into
+ * the same primitive tables the sort_by_doc query scores with. Documents absent
+ * from the list have no value in aggregations, and score the <code>missing</code>
+ * param (0 by default) in score scripts.
+ * <p>
+ * <code>score</code> is the only script: arbitrary formulas over the lookup score are
+ * not supported, it is combined with other scores through the functions of a
+ * <code>function_score</code> query. A Painless class binding would get the script,
+ * which knows the document being scored only by doc id, doc base, shard and index,
+ * while the tables are resolved against the terms of the segment reader itself.
+ */
+public class SortByDocScriptEngine implements ScriptEngine {
+    public static final String NAME = "sort_by_doc";
+    public static final String SCORE_SOURCE = "score";
+    public static final String MISSING_PARAM = "missing";
+
+    private final Supplier<ScoreLookupService> lookupService;
+
+    public SortByDocScriptEngine(Supplier<ScoreLookupService> lookupService) {
+        this.lookupService = lookupService;
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+
+    @Override
+    public <FactoryType> FactoryType compile(String name, String code, ScriptContext<FactoryType> context, Map<String, String> params) {
+        if (!SCORE_SOURCE.equals(code)) {
+            throw new IllegalArgumentException("[sort_by_doc] unknown script [" + code + "], only [" + SCORE_SOURCE + "] is supported, "
+                    + "combine it with other scores through the functions of a [function_score] query");
+        }
+        if (context.equals(AggregationScript.CONTEXT)) {
+            AggregationScript.Factory factory = (p, lookup) -> new ScoreAggregationLeafFactory(lookupService.get(), fetchTable(p, lookup), p, lookup);
+            return context.factoryClazz.cast(factory);
+        }
+        if (context.equals(ScoreScript.CONTEXT)) {
+            ScoreScript.Factory factory = (p, lookup) -> new ScoreLeafFactory(lookupService.get(), fetchTable(p, lookup), p, lookup);
+            return context.factoryClazz.cast(factory);
+        }
+        throw new IllegalArgumentException("[sort_by_doc] scripts cannot be used in context [" + context.name + "]");
+    }
+
+    private ScoreTable fetchTable(Map<String, Object> params, SearchLookup searchLookup) {
+        ScoreLookup lookup = ScoreLookup.fromParams(params);
+        // counted for the LookupWarmer of the searched index
+        lookupService.get().recordUse(searchLookup.doc().mapperService().index().getName(), lookup);
+        return lookupService.get().getTable(lookup, null);
+    }
+
+    private static class ScoreAggregationLeafFactory implements AggregationScript.LeafFactory {
+        private final ScoreLookupService lookupService;
+        private final ScoreTable table;
+        private final Map<String, Object> params;
+        private final SearchLookup lookup;
+
+        ScoreAggregationLeafFactory(ScoreLookupService lookupService, ScoreTable table, Map<String, Object> params, SearchLookup lookup) {
+            this.lookupService = lookupService;
+            this.table = table;
+            this.params = params;
+            this.lookup = lookup;
+        }
+
+        @Override
+        public AggregationScript newInstance(LeafReaderContext ctx) throws IOException {
+            LeafScores.Cursor scores = lookupService.resolve(table, ctx).cursor();
+            return new AggregationScript(params, lookup, ctx) {
+                private boolean exists;
+
+                @Override
+                public void setDocument(int docid) {
+                    super.setDocument(docid);
+                    exists = scores.advanceExact(docid);
+                }
+
+                @Override
+                public Object execute() {
+                    return exists ? (double) scores.score() : null;
+                }
+            };
+        }
+
+        @Override
+        public boolean needs_score() {
+            return false;
+        }
+    }
+
+    private static class ScoreLeafFactory implements ScoreScript.LeafFactory {
+        private final ScoreLookupService lookupService;
+        private final ScoreTable table;
+        private final Map<String, Object> params;
+        private final SearchLookup lookup;
+        private final double missing;
+
+        ScoreLeafFactory(ScoreLookupService lookupService, ScoreTable table, Map<String, Object> params, SearchLookup lookup) {
+            this.lookupService = lookupService;
+            this.table = table;
+            this.params = params;
+            this.lookup = lookup;
+            Object missing = params.get(MISSING_PARAM);
+            this.missing = missing instanceof Number ? ((Number) missing).doubleValue() : 0;
+        }
+
+        @Override
+        public ScoreScript newInstance(LeafReaderContext ctx) throws IOException {
+            LeafScores.Cursor scores = lookupService.resolve(table, ctx).cursor();
+            return new ScoreScript(params, lookup, ctx) {
+                private boolean exists;
+
+                @Override
+                public void setDocument(int docid) {
+                    super.setDocument(docid);
+                    exists = scores.advanceExact(docid);
+                }
+
+                @Override
+                public double execute() {
+                    return exists ? scores.score() : missing;
+                }
+            };
+        }
+
+        @Override
+        public boolean needs_score() {
+            return false;
+        }
+    }
+}
@@ -17,29 +17,29 @@ import java.util.Map;
  */
 public class XContentGetScoreMap {
     private static final Logger log = LogManager.getLogger(XContentGetScoreMap.class);
+    /**
+     * @param val the field holding scores, null to score items by their position in the list (starting at 1)
+     */
     public static Map<String, Float> extractMap(Object part, String rootPath, String key, String val) {
-        String[] pathElements = Strings.splitStringByCommaToArray(rootPath);
-
-        // We expect only one
-        for (int i = 0; i < pathElements.length; ++i) {
-            if (!(part instanceof Map))
-                return null;
-            part = ((Map)part).get(pathElements[i]);
-            if (i == pathElements.length - 1)
-                break;
-        }
-
-        if (!(part instanceof List)) {
+        List<?> items = extractList(part, rootPath);
+        if (items == null) {
             return null;
         }
 
         Map<String, Float> values = new HashMap<>();
-        for (Object o: (List)part) {
+        int position = 0;
+        for (Object o: items) {
             if (!(o instanceof Map)) {
                 return null;
             }
-            Map item = (Map)o;
+            position++;
+            Map<?, ?> item = (Map<?, ?>)o;
             Object itemKey = item.get(key);
+            if (val == null && itemKey instanceof String) {
+                // rank only list: the position is the score
+                values.put((String) itemKey, (float) position);
+                continue;
+            }
             Object itemVal = item.get(val);
 
             if (itemKey instanceof String) {
@@ -69,4 +69,25 @@ public class XContentGetScoreMap {
 
         return values;
     }
+
+    /**
+     * @return the list of items found at rootPath, null if there is none
+     */
+    public static List<?> extractList(Object part, String rootPath) {
+        String[] pathElements = Strings.splitStringByCommaToArray(rootPath);
+
+        // We expect only one
+        for (int i = 0; i < pathElements.length; ++i) {
+            if (!(part instanceof Map))
+                return null;
+            part = ((Map<?, ?>)part).get(pathElements[i]);
+            if (i == pathElements.length - 1)
+                break;
+        }
+
+        if (!(part instanceof List)) {
+            return null;
+        }
+        return (List<?>) part;
+    }
 }
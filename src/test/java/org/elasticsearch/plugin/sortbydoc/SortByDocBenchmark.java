@@ -0,0 +1,342 @@
+package org.elasticsearch.plugin.sortbydoc;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.query.sortbydoc.SortByDocQueryBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.test.ESIntegTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Macro benchmark of the sort_by_doc query: concurrent searches against synthetic corpora and
+ * lookup lists, for every combination of list size and shard count.
+ * <p>
+ * Not part of the default test run, see the <code>benchmark</code> profile:
+ * <pre>
+ * mvn test -Pbenchmark -Dsortbydoc.bench.ids=1000,100000 -Dsortbydoc.bench.shards=1,20 -Dsortbydoc.bench.clients=50
+ * </pre>
+ * Results are written to <code>sortbydoc.bench.output</code>. When <code>sortbydoc.bench.baseline</code> points to
+ * the results of a previous run, throughput or p99 latency worse than the baseline by more than
+ * <code>sortbydoc.bench.tolerance</code> (a ratio) fails the run.
+ * <p>
+ * Searches are all sent through one coordinating only node, in addition to the
+ * <code>sortbydoc.bench.nodes</code> data nodes. The test cluster lives in this JVM: heap and GC figures
+ * cover the whole JVM, every node and the clients together.
+ * Long sweeps may need a larger <code>tests.timeoutSuite</code>.
+ */
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE, numDataNodes = 0, numClientNodes = 0, supportsDedicatedMasters = false)
+public class SortByDocBenchmark extends ESIntegTestCase {
+    private static final String INDEX = "bench_docs";
+    private static final String LOOKUP_INDEX = "bench_lists";
+    private static final String JVM_SCOPE = "heap and GC figures cover the whole test JVM, all nodes and clients included";
+
+    private final int[] listSizes = intsProperty("sortbydoc.bench.ids", "1000,10000,100000");
+    private final int[] shardCounts = intsProperty("sortbydoc.bench.shards", "1,5,20");
+    private final int nodes = Integer.parseInt(System.getProperty("sortbydoc.bench.nodes", "2"));
+    private final int docs = Integer.parseInt(System.getProperty("sortbydoc.bench.docs", "200000"));
+    private final int lists = Integer.parseInt(System.getProperty("sortbydoc.bench.lists", "10"));
+    private final int clients = Integer.parseInt(System.getProperty("sortbydoc.bench.clients", "50"));
+    private final long warmupMillis = Long.parseLong(System.getProperty("sortbydoc.bench.warmup_seconds", "10")) * 1000;
+    private final long durationMillis = Long.parseLong(System.getProperty("sortbydoc.bench.duration_seconds", "30")) * 1000;
+    private final long seed = Long.parseLong(System.getProperty("sortbydoc.bench.seed", "42"));
+    private final String output = System.getProperty("sortbydoc.bench.output", "target/sort-by-doc-benchmark.properties");
+    private final String baseline = System.getProperty("sortbydoc.bench.baseline");
+    private final double tolerance = Double.parseDouble(System.getProperty("sortbydoc.bench.tolerance", "0.2"));
+    // the client of every measured search
+    private Client searchClient;
+
+    @Test
+    public void testThroughput() throws Exception {
+        internalCluster().startNodes(nodes);
+        internalCluster().startCoordinatingOnlyNode(Settings.EMPTY);
+        searchClient = internalCluster().coordOnlyNodeClient();
+        Properties results = new Properties();
+        List<String> regressions = new ArrayList<>();
+        Properties baselineResults = loadBaseline();
+
+        for (int shards : shardCounts) {
+            createCorpus(shards);
+            for (int listSize : listSizes) {
+                createLists(listSize);
+                Result result = run();
+                String key = "ids_" + listSize + ".shards_" + shards;
+                logger.info("[sort_by_doc benchmark] ids={} shards={} clients={}: {} ({})", listSize, shards, clients, result, JVM_SCOPE);
+                result.store(results, key);
+                if (baselineResults != null) {
+                    regressions.addAll(result.regressions(baselineResults, key, tolerance));
+                }
+            }
+            client().admin().indices().prepareDelete(INDEX, LOOKUP_INDEX).get();
+        }
+
+        Path outputPath = Paths.get(output);
+        if (outputPath.getParent() != null) {
+            Files.createDirectories(outputPath.getParent());
+        }
+        try (OutputStream out = Files.newOutputStream(outputPath)) {
+            results.store(out, "sort_by_doc benchmark, seed " + seed + ", " + JVM_SCOPE);
+        }
+        Assert.assertTrue("Regressions against " + baseline + ": " + regressions, regressions.isEmpty());
+    }
+
+    private void createCorpus(int shards) throws IOException {
+        client().admin().indices().prepareCreate(INDEX)
+                .setSettings(Settings.builder().put("index.number_of_shards", shards).put("index.number_of_replicas", 0))
+                .get();
+        client().admin().indices().prepareCreate(LOOKUP_INDEX)
+                .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", nodes - 1))
+                .get();
+        Random random = new Random(seed);
+        BulkRequestBuilder bulk = client().prepareBulk();
+        for (int i = 0; i < docs; ++i) {
+            bulk.add(client().prepareIndex(INDEX, "_doc", Integer.toString(i))
+                    .setSource("type", random.nextInt(10), "value", random.nextDouble()));
+            if (bulk.numberOfActions() == 5000) {
+                assertNoBulkFailures(bulk);
+                bulk = client().prepareBulk();
+            }
+        }
+        if (bulk.numberOfActions() > 0) {
+            assertNoBulkFailures(bulk);
+        }
+        client().admin().indices().prepareForceMerge(INDEX).setMaxNumSegments(5).get();
+        client().admin().indices().prepareRefresh(INDEX).get();
+    }
+
+    private void createLists(int listSize) throws IOException {
+        Random random = new Random(seed + listSize);
+        for (int l = 0; l < lists; ++l) {
+            XContentBuilder list = XContentFactory.jsonBuilder().startObject().startArray("elements");
+            for (int i = 0; i < listSize; ++i) {
+                list.startObject()
+                        .field("id", Integer.toString(random.nextInt(docs)))
+                        .field("score", random.nextFloat() * 1000)
+                        .endObject();
+            }
+            list.endArray().endObject();
+            client().prepareIndex(LOOKUP_INDEX, "_doc", "list_" + l).setSource(list).get();
+        }
+        client().admin().indices().prepareRefresh(LOOKUP_INDEX).get();
+    }
+
+    private void assertNoBulkFailures(BulkRequestBuilder bulk) {
+        Assert.assertFalse(bulk.get().hasFailures());
+    }
+
+    private Result run() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            // warm up, then measure
+            drive(executor, warmupMillis);
+            System.gc();
+            resetPeakHeap();
+            long gcCount = gcCount();
+            long gcMillis = gcMillis();
+            long start = System.nanoTime();
+            List<long[]> latencies = drive(executor, durationMillis);
+            long elapsed = System.nanoTime() - start;
+
+            int count = 0;
+            for (long[] clientLatencies : latencies) {
+                count += clientLatencies.length;
+            }
+            long[] all = new long[count];
+            int offset = 0;
+            for (long[] clientLatencies : latencies) {
+                System.arraycopy(clientLatencies, 0, all, offset, clientLatencies.length);
+                offset += clientLatencies.length;
+            }
+            Arrays.sort(all);
+            return new Result(
+                    count * 1e9 / elapsed,
+                    percentileMillis(all, 0.5),
+                    percentileMillis(all, 0.99),
+                    peakHeap(),
+                    gcCount() - gcCount,
+                    gcMillis() - gcMillis);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Runs searches from every client for the given duration, returning the latencies (in ns) of each client
+     */
+    private List<long[]> drive(ExecutorService executor, long millis) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; ++c) {
+            final Random random = new Random(seed + c);
+            futures.add(executor.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    SortByDocQueryBuilder query = new SortByDocQueryBuilder()
+                            .query(QueryBuilders.matchAllQuery())
+                            .lookupIndex(LOOKUP_INDEX)
+                            .lookupId("list_" + random.nextInt(lists))
+                            .rootPath("elements")
+                            .idField("id")
+                            .scoreField("score")
+                            .sortOrder(SortOrder.DESC);
+                    long start = System.nanoTime();
+                    SearchResponse response = searchClient.prepareSearch(INDEX).setQuery(query).setSize(10).get();
+                    long latency = System.nanoTime() - start;
+                    Assert.assertEquals(0, response.getFailedShards());
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = latency;
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        List<long[]> latencies = new ArrayList<>();
+        for (Future<long[]> future : futures) {
+            latencies.add(future.get());
+        }
+        return latencies;
+    }
+
+    private static double percentileMillis(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(percentile * sortedNanos.length) - 1);
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the peak usages of the heap pools since {@link #resetPeakHeap()}: pools peak at different
+     * times, so this is an upper bound of the peak heap
+     */
+    private static long peakHeap() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private Properties loadBaseline() throws IOException {
+        if (baseline == null) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(baseline))) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static int[] intsProperty(String name, String defaultValue) {
+        return Arrays.stream(System.getProperty(name, defaultValue).split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static class Result {
+        private final double qps;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final long peakHeapBytes;
+        private final long gcCount;
+        private final long gcMillis;
+
+        Result(double qps, double p50Millis, double p99Millis, long peakHeapBytes, long gcCount, long gcMillis) {
+            this.qps = qps;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.peakHeapBytes = peakHeapBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        void store(Properties properties, String key) {
+            properties.setProperty(key + ".qps", Double.toString(qps));
+            properties.setProperty(key + ".p50_ms", Double.toString(p50Millis));
+            properties.setProperty(key + ".p99_ms", Double.toString(p99Millis));
+            properties.setProperty(key + ".peak_heap_bytes", Long.toString(peakHeapBytes));
+            properties.setProperty(key + ".gc_count", Long.toString(gcCount));
+            properties.setProperty(key + ".gc_ms", Long.toString(gcMillis));
+        }
+
+        List<String> regressions(Properties baseline, String key, double tolerance) {
+            List<String> regressions = new ArrayList<>();
+            String baselineQps = baseline.getProperty(key + ".qps");
+            if (baselineQps != null && qps < Double.parseDouble(baselineQps) * (1 - tolerance)) {
+                regressions.add(key + ".qps " + qps + " < " + baselineQps);
+            }
+            String baselineP99 = baseline.getProperty(key + ".p99_ms");
+            if (baselineP99 != null && p99Millis > Double.parseDouble(baselineP99) * (1 + tolerance)) {
+                regressions.add(key + ".p99_ms " + p99Millis + " > " + baselineP99);
+            }
+            return regressions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1f qps, p50 %.2f ms, p99 %.2f ms, peak heap %d MB, %d GCs (%d ms)",
+                    qps, p50Millis, p99Millis, peakHeapBytes >> 20, gcCount, gcMillis);
+        }
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Arrays.asList(SortByDocPlugin.class);
+    }
+}
@@ -1,25 +1,84 @@
 package org.elasticsearch.plugin.sortbydoc;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.Version;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.Uid;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.indices.breaker.NoneCircuitBreakerService;
 import org.elasticsearch.indices.TermsLookup;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.ScoreScript;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.Avg;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.query.sortbydoc.SortByDocFilterQueryBuilder;
 import org.elasticsearch.search.query.sortbydoc.SortByDocQueryBuilder;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupVersion;
+import org.elasticsearch.search.query.sortbydoc.lookup.LookupWarmer;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreListPatch;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookup;
+import org.elasticsearch.search.query.sortbydoc.lookup.ScoreLookupService;
+import org.elasticsearch.search.query.sortbydoc.rest.RestUpdateScoresAction;
+import org.elasticsearch.search.query.sortbydoc.scoring.IdDictionary;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreColumn;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreEncoding;
+import org.elasticsearch.search.query.sortbydoc.scoring.ScoreTable;
+import org.elasticsearch.search.query.sortbydoc.script.SortByDocScriptEngine;
+import org.elasticsearch.search.query.sortbydoc.utils.XContentGetScoreMap;
 import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.test.rest.FakeRestChannel;
+import org.elasticsearch.test.rest.FakeRestRequest;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.usage.UsageService;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(value=com.carrotsearch.randomizedtesting.RandomizedRunner.class)
 public class SortByDocTest extends ESIntegTestCase {
@@ -141,6 +200,604 @@ public class SortByDocTest extends ESIntegTestCase {
 
     }
 
+    @Test
+    public void testScoreEncodings() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("3", 2.5), new LE("2", 3))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        for (ScoreEncoding encoding : ScoreEncoding.values()) {
+            SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                    .query(QueryBuilders.matchAllQuery())
+                    .lookupIndex(indexL)
+                    .lookupId("l1")
+                    .idField("id")
+                    .sortOrder(SortOrder.DESC)
+                    .rootPath("elements")
+                    .scoreField("score")
+                    .scoreEncoding(encoding);
+
+            final SearchResponse test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+            Assert.assertEquals(encoding.getName(), 3, test.getHits().getTotalHits().value);
+            // scores and positions in the list give the same order
+            Assert.assertEquals(encoding.getName(), "2", test.getHits().getHits()[0].getId());
+            Assert.assertEquals(encoding.getName(), "3", test.getHits().getHits()[1].getId());
+            Assert.assertEquals(encoding.getName(), "1", test.getHits().getHits()[2].getId());
+        }
+
+        // ranks do not need a score field
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .idField("id")
+                .sortOrder(SortOrder.ASC)
+                .rootPath("elements")
+                .scoreEncoding(ScoreEncoding.RANK);
+        final SearchResponse test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(3, test.getHits().getTotalHits().value);
+        Assert.assertEquals("1", test.getHits().getHits()[0].getId());
+        Assert.assertEquals("3", test.getHits().getHits()[1].getId());
+        Assert.assertEquals("2", test.getHits().getHits()[2].getId());
+    }
+
+    @Test
+    public void testFloat16Range() throws Exception {
+        ScoreColumn column = ScoreEncoding.FLOAT16.encode(new float[]{ScoreColumn.INVALID, -65504f, 1.5f, 65504f});
+        Assert.assertEquals(ScoreColumn.INVALID, column.get(0), 0f);
+        Assert.assertEquals(-65504f, column.get(1), 0f);
+        Assert.assertEquals(1.5f, column.get(2), 0f);
+        Assert.assertEquals(65504f, column.get(3), 0f);
+        // dates and other large scores are not clamped
+        expectThrows(IllegalArgumentException.class, () -> ScoreEncoding.FLOAT16.encode(new float[]{1.5f, 1.5e12f}));
+        expectThrows(IllegalArgumentException.class, () -> ScoreEncoding.FLOAT16.encode(new float[]{-70000f}));
+    }
+
+    @Test
+    public void testLookupScoreAggregation() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "C"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("index", indexL);
+        params.put("doc_id", "l1");
+        params.put("root", "elements");
+        params.put("id", "id");
+        params.put("score", "score");
+        Script script = new Script(ScriptType.INLINE, SortByDocScriptEngine.NAME, SortByDocScriptEngine.SCORE_SOURCE, params);
+
+        final SearchResponse test = client().prepareSearch(indexE)
+                .setQuery(QueryBuilders.matchAllQuery())
+                .addAggregation(AggregationBuilders.avg("avg").script(script))
+                .addAggregation(AggregationBuilders.max("max").script(script))
+                .execute().actionGet();
+        Assert.assertEquals(4, test.getHits().getTotalHits().value);
+
+        // document 4 is not in the list and has no value
+        Avg avg = test.getAggregations().get("avg");
+        Assert.assertEquals(2.0, avg.getValue(), 1e-6);
+        Max max = test.getAggregations().get("max");
+        Assert.assertEquals(3.0, max.getValue(), 1e-6);
+    }
+
+    @Test
+    public void testLookupScoreScript() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "C"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("index", indexL);
+        params.put("doc_id", "l1");
+        params.put("root", "elements");
+        params.put("id", "id");
+        params.put("score", "score");
+        params.put(SortByDocScriptEngine.MISSING_PARAM, 0.5);
+        Script script = new Script(ScriptType.INLINE, SortByDocScriptEngine.NAME, SortByDocScriptEngine.SCORE_SOURCE, params);
+
+        final SearchResponse test = client().prepareSearch(indexE)
+                .setQuery(QueryBuilders.functionScoreQuery(QueryBuilders.matchAllQuery(), ScoreFunctionBuilders.scriptFunction(script))
+                        .boostMode(CombineFunction.REPLACE))
+                .execute().actionGet();
+        Assert.assertEquals(4, test.getHits().getTotalHits().value);
+
+        Assert.assertEquals("2", test.getHits().getHits()[0].getId());
+        Assert.assertEquals("3", test.getHits().getHits()[1].getId());
+        Assert.assertEquals("1", test.getHits().getHits()[2].getId());
+        Assert.assertEquals("4", test.getHits().getHits()[3].getId());
+        Assert.assertEquals(0.5f, test.getHits().getHits()[3].getScore(), 1e-6);
+    }
+
+    @Test
+    public void testLookupScoreScriptFormula() throws Exception {
+        SortByDocScriptEngine engine = new SortByDocScriptEngine(() -> null);
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> engine.compile("formula", "score * 2", ScoreScript.CONTEXT, Collections.emptyMap()));
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("function_score"));
+    }
+
+    @Test
+    public void testScoreListPatch() throws Exception {
+        Map<String, Float> upserts = new HashMap<>();
+        upserts.put("2", 0.5f);
+        upserts.put("4", 4f);
+        ScoreListPatch patch = new ScoreListPatch("elements", "id", "score", upserts, Collections.singleton("3"));
+
+        Map<String, Object> source = objectMapper.convertValue(
+                new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))), new TypeReference<Map<String, Object>>() {});
+        patch.apply(source);
+        Map<String, Float> patched = XContentGetScoreMap.extractMap(source, "elements", "id", "score");
+        Map<String, Float> expected = new HashMap<>();
+        expected.put("1", 1f);
+        expected.put("2", 0.5f);
+        expected.put("4", 4f);
+        Assert.assertEquals(expected, patched);
+
+        Map<String, Float> original = new HashMap<>();
+        original.put("1", 1f);
+        original.put("2", 3f);
+        original.put("3", 2f);
+        Assert.assertEquals(ScoreTable.build(expected, false, ScoreEncoding.FLOAT32),
+                ScoreTable.build(original, false, ScoreEncoding.FLOAT32).patch(patch.getUpserts(), patch.getRemovals(), null));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder(indexL, "l1", null, "elements", "id", "score",
+                QueryBuilders.matchAllQuery(), SortOrder.DESC, null, 2f);
+        Assert.assertEquals(builder, copy(builder, Version.CURRENT));
+        // nodes before the lookup options read the score field as a required string
+        Assert.assertEquals(builder, copy(builder, Version.V_7_3_0));
+
+        builder.joinField("type");
+        Assert.assertEquals(builder, copy(builder, Version.CURRENT));
+        expectThrows(IllegalArgumentException.class, () -> copy(builder, Version.V_7_3_0));
+        builder.joinField(null).scoreEncoding(ScoreEncoding.RANK).scoreField(null);
+        Assert.assertEquals(builder, copy(builder, Version.CURRENT));
+        expectThrows(IllegalArgumentException.class, () -> copy(builder, Version.V_7_3_0));
+    }
+
+    private QueryBuilder copy(QueryBuilder builder, Version version) throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.setVersion(version);
+            out.writeNamedWriteable(builder);
+            try (StreamInput in = new NamedWriteableAwareStreamInput(out.bytes().streamInput(),
+                    internalCluster().getInstance(NamedWriteableRegistry.class))) {
+                in.setVersion(version);
+                return in.readNamedWriteable(QueryBuilder.class);
+            }
+        }
+    }
+
+    @Test
+    public void testRequestCache() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))));
+        // no background merge may change the readers, and the cache keys, between the searches
+        client().admin().indices().prepareForceMerge(indexE).setFlush(true).setMaxNumSegments(1).execute().actionGet();
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .idField("id")
+                .rootPath("elements")
+                .scoreField("score")
+                .sortOrder(SortOrder.DESC);
+
+        // the whole shard request is the cache key: a randomized client may change the source from one request to
+        // the next, and a fixed preference reads the same shard copies each time
+        Client client = client();
+        SearchResponse test = client.prepareSearch(indexE).setSearchType(SearchType.QUERY_THEN_FETCH).setPreference("request_cache").setQuery(builder).setSize(0).setRequestCache(true).execute().actionGet();
+        Assert.assertEquals(3, test.getHits().getTotalHits().value);
+        test = client.prepareSearch(indexE).setSearchType(SearchType.QUERY_THEN_FETCH).setPreference("request_cache").setQuery(builder).setSize(0).setRequestCache(true).execute().actionGet();
+        Assert.assertEquals(3, test.getHits().getTotalHits().value);
+        Assert.assertTrue(client().admin().indices().prepareStats(indexE).setRequestCache(true).execute().actionGet()
+                .getTotal().getRequestCache().getHitCount() > 0);
+
+        // a new version of the lookup document is a new cache key
+        indexObject(new L("l1", Collections.singletonList(new LE("2", 3))));
+        client().admin().indices().prepareRefresh(indexL).execute().actionGet();
+        test = client.prepareSearch(indexE).setSearchType(SearchType.QUERY_THEN_FETCH).setPreference("request_cache").setQuery(builder).setSize(0).setRequestCache(true).execute().actionGet();
+        Assert.assertEquals(1, test.getHits().getTotalHits().value);
+    }
+
+    @Test
+    public void testUpdateScores() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "C"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        String node = internalCluster().getNodeNames()[0];
+        ScoreLookupService service = internalCluster().getInstance(ScoreLookupService.class, node);
+        ScoreLookup lookup = new ScoreLookup(indexL, "l1", null, "elements", "id", "score", ScoreEncoding.FLOAT32);
+        LookupVersion version = LookupVersion.of(client().prepareGet(indexL, "_doc", "l1").execute().actionGet());
+        Assert.assertEquals(3, service.getTable(lookup, version).size());
+
+        NodeClient nodeClient = (NodeClient) internalCluster().getInstance(Client.class, node);
+        RestController controller = new RestController(Collections.emptySet(), null, nodeClient,
+                new NoneCircuitBreakerService(), new UsageService());
+        RestUpdateScoresAction action = new RestUpdateScoresAction(Settings.EMPTY, controller,
+                internalCluster().getInstance(ThreadPool.class, node), service);
+        Map<String, String> params = new HashMap<>();
+        params.put("index", indexL);
+        params.put("id", "l1");
+        params.put("refresh", "true");
+        RestRequest request = new FakeRestRequest.Builder(xContentRegistry())
+                .withMethod(RestRequest.Method.POST)
+                .withPath("/" + indexL + "/_sort_by_doc/l1/_update")
+                .withParams(params)
+                .withContent(new BytesArray("{\"root\": \"elements\", \"id\": \"id\", \"score\": \"score\", "
+                        + "\"upsert\": {\"4\": 4, \"1\": 5}, \"remove\": [\"2\"]}"), XContentType.JSON)
+                .build();
+        FakeRestChannel channel = new FakeRestChannel(request, true, 1);
+        action.handleRequest(request, channel, nodeClient);
+        assertBusy(() -> Assert.assertEquals(1, channel.responses().get()));
+        Assert.assertEquals(RestStatus.OK, channel.capturedResponse().status());
+
+        // the handling node carries its cached list over to the new version instead of parsing it again
+        LookupVersion newVersion = LookupVersion.of(client().prepareGet(indexL, "_doc", "l1").execute().actionGet());
+        Assert.assertNotEquals(version, newVersion);
+        assertBusy(() -> Assert.assertTrue(service.isCached(lookup, newVersion)));
+        Assert.assertFalse(service.isCached(lookup, version));
+
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .idField("id")
+                .sortOrder(SortOrder.DESC)
+                .rootPath("elements")
+                .scoreField("score");
+        final SearchResponse test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(3, test.getHits().getTotalHits().value);
+        Assert.assertEquals("1", test.getHits().getHits()[0].getId());
+        Assert.assertEquals("4", test.getHits().getHits()[1].getId());
+        Assert.assertEquals("3", test.getHits().getHits()[2].getId());
+        Assert.assertTrue(service.isCached(lookup, newVersion));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))));
+        client().admin().indices().prepareRefresh(indexL).execute().actionGet();
+
+        ScoreLookup lookup = new ScoreLookup(indexL, "l1", null, "elements", "id", "score", ScoreEncoding.FLOAT32);
+        LookupVersion version = LookupVersion.of(client().prepareGet(indexL, "_doc", "l1").execute().actionGet());
+        ScoreLookupService service = internalCluster().getInstance(ScoreLookupService.class);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ScoreTable>> tables = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                tables.add(executor.submit(() -> {
+                    start.await();
+                    return service.getTable(lookup, version);
+                }));
+            }
+            start.countDown();
+            // all requesters share a single parsed table
+            ScoreTable table = tables.get(0).get();
+            Assert.assertEquals(3, table.size());
+            for (Future<ScoreTable> other : tables) {
+                Assert.assertSame(table, other.get());
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testBreakerAccounting() throws Exception {
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3))));
+        client().admin().indices().prepareRefresh(indexL).execute().actionGet();
+
+        String node = internalCluster().getNodeNames()[0];
+        ScoreLookupService service = internalCluster().getInstance(ScoreLookupService.class, node);
+        CircuitBreaker breaker = internalCluster().getInstance(CircuitBreakerService.class, node).getBreaker(CircuitBreaker.REQUEST);
+        long used = breaker.getUsed();
+
+        ScoreLookup lookup = new ScoreLookup(indexL, "l1", null, "elements", "id", "score", ScoreEncoding.FLOAT32);
+        LookupVersion version = LookupVersion.of(client().prepareGet(indexL, "_doc", "l1").execute().actionGet());
+        Assert.assertFalse(service.getTable(lookup, version).isEmpty());
+        Assert.assertTrue(breaker.getUsed() > used);
+
+        // a list deleted between the read of its version and its load is cached empty, and not accounted
+        client().prepareDelete(indexL, "_doc", "l1").execute().actionGet();
+        LookupVersion deleted = new LookupVersion(version.getIndex(), true, version.getSeqNo() + 1, version.getPrimaryTerm());
+        Assert.assertTrue(service.getTable(lookup, deleted).isEmpty());
+        service.invalidateIndex(indexL);
+        Assert.assertEquals(used, breaker.getUsed());
+    }
+
+    @Test
+    public void testChunkedList() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "C"));
+        indexObject(new L("m1_0", Arrays.asList(new LE("1", 1), new LE("2", 3))));
+        indexObject(new L("m1_1", Arrays.asList(new LE("3", 2), new LE("4", 5))));
+        client().prepareIndex(indexL, "_doc", "m1").setSource("chunks", Arrays.asList("m1_0", "m1_1")).execute().actionGet();
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .lookupIndex(indexL)
+                .lookupId("m1")
+                .chunksField("chunks")
+                .idField("id")
+                .sortOrder(SortOrder.DESC)
+                .rootPath("elements")
+                .scoreField("score");
+        SearchResponse test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(4, test.getHits().getTotalHits().value);
+        Assert.assertEquals("4", test.getHits().getHits()[0].getId());
+        Assert.assertEquals("2", test.getHits().getHits()[1].getId());
+        Assert.assertEquals("3", test.getHits().getHits()[2].getId());
+        Assert.assertEquals("1", test.getHits().getHits()[3].getId());
+
+        // ranks follow each other across chunks
+        builder.sortOrder(SortOrder.ASC).scoreEncoding(ScoreEncoding.RANK);
+        test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(4, test.getHits().getTotalHits().value);
+        Assert.assertEquals("1", test.getHits().getHits()[0].getId());
+        Assert.assertEquals("2", test.getHits().getHits()[1].getId());
+        Assert.assertEquals("3", test.getHits().getHits()[2].getId());
+        Assert.assertEquals("4", test.getHits().getHits()[3].getId());
+
+        // chunks fetched by several multi gets still merge in the order of the manifest
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            indexObject(new L("m2_" + i, Collections.singletonList(new LE(Integer.toString(4 - i % 4), i))));
+            chunks.add("m2_" + i);
+        }
+        client().prepareIndex(indexL, "_doc", "m2").setSource("chunks", chunks).execute().actionGet();
+        client().admin().indices().prepareRefresh(indexL).execute().actionGet();
+        builder.lookupId("m2").sortOrder(SortOrder.DESC).scoreEncoding(ScoreEncoding.FLOAT32);
+        test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(4, test.getHits().getTotalHits().value);
+        Assert.assertEquals("1", test.getHits().getHits()[0].getId());
+        Assert.assertEquals(19f, test.getHits().getHits()[0].getScore(), 1e-6);
+        Assert.assertEquals("4", test.getHits().getHits()[3].getId());
+        Assert.assertEquals(16f, test.getHits().getHits()[3].getScore(), 1e-6);
+    }
+
+    @Test
+    public void testJoinField() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "B"));
+        indexObject(new L("l1", Arrays.asList(new LE("A", 1), new LE("C", 2), new LE("D", 3))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .joinField("type.keyword")
+                .idField("id")
+                .sortOrder(SortOrder.DESC)
+                .rootPath("elements")
+                .scoreField("score");
+        SearchResponse test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        // several documents per key, documents whose key is not listed do not match
+        Assert.assertEquals(3, test.getHits().getTotalHits().value);
+        Assert.assertEquals("3", test.getHits().getHits()[0].getId());
+        Assert.assertEquals(2f, test.getHits().getHits()[0].getScore(), 1e-6);
+        Assert.assertEquals(1f, test.getHits().getHits()[1].getScore(), 1e-6);
+        Assert.assertEquals(1f, test.getHits().getHits()[2].getScore(), 1e-6);
+    }
+
+    @Test
+    public void testLookupWarmer() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("2", 3), new LE("3", 2))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+        client().admin().indices().prepareUpdateSettings(indexE)
+                .setSettings(Settings.builder().put(LookupWarmer.HOT_LOOKUPS_SETTING.getKey(), 10)).execute().actionGet();
+
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.matchAllQuery())
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .idField("id")
+                .sortOrder(SortOrder.DESC)
+                .rootPath("elements")
+                .scoreField("score");
+        // the list is warmed before any search uses it
+        ScoreLookup lookup = new ScoreLookup(indexL, "l1", null, "elements", "id", "score", ScoreEncoding.FLOAT32);
+        for (ScoreLookupService service : internalCluster().getInstances(ScoreLookupService.class)) {
+            service.recordUse(indexE, lookup);
+        }
+        assertBusy(() -> assertWarm(lookup));
+        Assert.assertEquals(3, client().prepareSearch(indexE).setQuery(builder).execute().actionGet().getHits().getTotalHits().value);
+
+        // the warmer keeps up with new segments, and new versions of the list with them
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("4", 3))));
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "C"));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+        assertBusy(() -> assertWarm(lookup));
+        final SearchResponse test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(2, test.getHits().getTotalHits().value);
+        Assert.assertEquals("4", test.getHits().getHits()[0].getId());
+
+        // lists used by filters are counted too
+        SortByDocFilterQueryBuilder filter = new SortByDocFilterQueryBuilder()
+                .lookupIndex(indexL)
+                .lookupId("l2")
+                .idField("id")
+                .rootPath("elements");
+        client().prepareSearch(indexE).setQuery(filter).execute().actionGet();
+        ScoreLookup filterLookup = new ScoreLookup(indexL, "l2", null, "elements", "id", null, ScoreEncoding.RANK);
+        boolean counted = false;
+        for (ScoreLookupService service : internalCluster().getInstances(ScoreLookupService.class)) {
+            counted |= service.hotLookups(indexE, 10).contains(filterLookup);
+        }
+        Assert.assertTrue(counted);
+
+        ScoreLookupService service = internalCluster().getInstance(ScoreLookupService.class);
+        ScoreLookup l1 = new ScoreLookup("hot_index", "l1", null, "elements", "id", "score", ScoreEncoding.FLOAT32);
+        ScoreLookup l2 = new ScoreLookup("hot_index", "l2", null, "elements", "id", "score", ScoreEncoding.FLOAT32);
+        for (int i = 0; i < 4; ++i) {
+            service.recordUse("hot_index", l1);
+            service.recordUse("hot_index", l1);
+            service.recordUse("hot_index", l2);
+        }
+        Assert.assertEquals(Collections.singletonList(l1), service.hotLookups("hot_index", 1));
+        // counts are halved, cold lists are eventually dropped
+        Assert.assertEquals(Arrays.asList(l1, l2), service.hotLookups("hot_index", 2));
+        service.decayUsage("hot_index");
+        Assert.assertEquals(Arrays.asList(l1, l2), service.hotLookups("hot_index", 2));
+        service.decayUsage("hot_index");
+        Assert.assertEquals(Arrays.asList(l1, l2), service.hotLookups("hot_index", 2));
+        service.decayUsage("hot_index");
+        Assert.assertEquals(Collections.singletonList(l1), service.hotLookups("hot_index", 2));
+    }
+
+    /**
+     * Asserts that the current version of a list is resolved against the segments of every copy of {@code indexE}
+     */
+    private void assertWarm(ScoreLookup lookup) throws Exception {
+        for (String node : internalCluster().getNodeNames()) {
+            IndexService indexService = internalCluster().getInstance(IndicesService.class, node).indexService(resolveIndex(indexE));
+            if (indexService == null) {
+                continue;
+            }
+            ScoreLookupService service = internalCluster().getInstance(ScoreLookupService.class, node);
+            ScoreTable table = service.getTable(lookup, null);
+            for (IndexShard shard : indexService) {
+                try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+                    for (LeafReaderContext leaf : searcher.reader().leaves()) {
+                        // segments without a core cache key, such as those of randomly wrapped readers, are not cached
+                        if (leaf.reader().getCoreCacheHelper() == null) {
+                            continue;
+                        }
+                        Assert.assertTrue(service.isCached(table, leaf, null));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        indexObject(new E("1", "A"));
+        indexObject(new E("2", "A"));
+        indexObject(new E("3", "C"));
+        indexObject(new E("4", "B"));
+        indexObject(new L("l1", Arrays.asList(new LE("1", 1), new LE("3", 2), new LE("A", 3))));
+        client().admin().indices().prepareRefresh(indexE, indexL).execute().actionGet();
+
+        SortByDocFilterQueryBuilder filter = new SortByDocFilterQueryBuilder()
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .idField("id")
+                .rootPath("elements");
+        SearchResponse test = client().prepareSearch(indexE).setQuery(filter).addSort("id.keyword", SortOrder.ASC).execute().actionGet();
+        Assert.assertEquals(2, test.getHits().getTotalHits().value);
+        Assert.assertEquals("1", test.getHits().getHits()[0].getId());
+        Assert.assertEquals("3", test.getHits().getHits()[1].getId());
+
+        filter.joinField("type.keyword");
+        test = client().prepareSearch(indexE).setQuery(QueryBuilders.boolQuery().filter(filter)).execute().actionGet();
+        Assert.assertEquals(2, test.getHits().getTotalHits().value);
+
+        // sort_by_doc in filter context only checks membership
+        SortByDocQueryBuilder builder = new SortByDocQueryBuilder()
+                .query(QueryBuilders.termQuery("type.keyword", "C"))
+                .lookupIndex(indexL)
+                .lookupId("l1")
+                .idField("id")
+                .sortOrder(SortOrder.DESC)
+                .rootPath("elements")
+                .scoreField("score");
+        test = client().prepareSearch(indexE).setQuery(QueryBuilders.boolQuery().filter(builder)).execute().actionGet();
+        Assert.assertEquals(1, test.getHits().getTotalHits().value);
+        Assert.assertEquals("3", test.getHits().getHits()[0].getId());
+
+        // a missing list filters out every document, while sort_by_doc falls back to its query
+        filter.lookupId("none").joinField(null);
+        test = client().prepareSearch(indexE).setQuery(filter).execute().actionGet();
+        Assert.assertEquals(0, test.getHits().getTotalHits().value);
+        builder.lookupId("none");
+        test = client().prepareSearch(indexE).setQuery(builder).execute().actionGet();
+        Assert.assertEquals(1, test.getHits().getTotalHits().value);
+        test = client().prepareSearch(indexE).setQuery(QueryBuilders.boolQuery().filter(builder)).execute().actionGet();
+        Assert.assertEquals(1, test.getHits().getTotalHits().value);
+    }
+
+    @Test
+    public void testIdDictionary() throws Exception {
+        List<BytesRef> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            ids.add(Uid.encodeId(Integer.toString(i * 7)));
+        }
+        ids.add(Uid.encodeId("doc_" + randomAlphaOfLength(20)));
+        Collections.sort(ids);
+
+        IdDictionary.Builder builder = new IdDictionary.Builder(0);
+        ids.forEach(builder::add);
+        IdDictionary dictionary = builder.build();
+        Assert.assertEquals(ids.size(), dictionary.size());
+        IdDictionary.Reader reader = dictionary.reader();
+        for (BytesRef id : ids) {
+            Assert.assertEquals(id, reader.next());
+        }
+        Assert.assertNull(reader.next());
+
+        // seeks move forward only, to listed ids and between them, within and across restart points
+        reader = dictionary.reader();
+        for (int i = 0; i < 7000; i += randomIntBetween(1, 200)) {
+            BytesRef target = Uid.encodeId(Integer.toString(i));
+            int ceil = Collections.binarySearch(ids, target);
+            ceil = ceil >= 0 ? ceil : -1 - ceil;
+            if (reader.index() >= ceil) {
+                continue;
+            }
+            BytesRef id = reader.seekCeil(target);
+            if (ceil == ids.size()) {
+                Assert.assertNull(id);
+                break;
+            }
+            Assert.assertEquals(ids.get(ceil), id);
+            Assert.assertEquals(ceil, reader.index());
+        }
+
+        IdDictionary.Builder other = new IdDictionary.Builder(0);
+        ids.forEach(other::add);
+        Assert.assertEquals(dictionary, other.build());
+
+        // the order is checked for every id, restart points included
+        IdDictionary.Builder unordered = new IdDictionary.Builder(0);
+        for (int i = 0; i < 16; ++i) {
+            unordered.add(ids.get(i + 1));
+        }
+        expectThrows(AssertionError.class, () -> unordered.add(ids.get(0)));
+    }
+
     private void indexObject(E o) throws JsonProcessingException {
         String source = objectMapper.writeValueAsString(o);
         client().prepareIndex(indexE, "_doc", o.id).setSource(source, XContentType.JSON).execute().actionGet();